@@ -0,0 +1,75 @@
+package ru.seregaizsbera.faketime.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.seregaizsbera.faketime.FakeTime;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Косвенная стоимость установки агента: после {@link FakeTime#install()} классы {@code System} и
+ * {@code Clock} переопределены, и {@code System.currentTimeMillis()} теряет интринсик даже в режиме
+ * по умолчанию. Измеряются прямые обращения к часам и типичный код, который читает часы попутно.
+ * Каждое значение параметра {@code installed} выполняется в отдельной JVM.
+ * <p>
+ * В этом классе нельзя обращаться к {@code TimeInterceptor} напрямую: класс должен загрузиться
+ * из загрузчика bootstrap после установки агента.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class InstalledClockBenchmark {
+    private long startMs;
+
+    @Param({"false", "true"})
+    public boolean installed;
+
+    @Setup
+    public void setUp() {
+        if (installed) {
+            FakeTime.install().reset();
+        }
+        startMs = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public Instant currentInstant() {
+        return Instant.now();
+    }
+
+    /**
+     * Создание записи журнала, которая запоминает момент своего создания
+     */
+    @Benchmark
+    public LogRecord logRecord() {
+        return new LogRecord(Level.INFO, "message");
+    }
+
+    /**
+     * Замер длительности операции в миллисекундах, как это делают счетчики метрик
+     */
+    @Benchmark
+    public long elapsedMillis() {
+        return System.currentTimeMillis() - startMs;
+    }
+}
@@ -0,0 +1,155 @@
+package ru.seregaizsbera.faketime.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость одного обращения к {@link TimeInterceptor} во всех режимах, которые можно установить через API.
+ * Агент в этих измерениях не устанавливается, методы перехватчика вызываются напрямую.
+ * Для сравнения с системными часами см. {@link JdkClockBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TimeInterceptorBenchmark {
+    private static final long EPOCH_NS = 1_555_555_555_123_456_789L;
+
+    @Param
+    public Config config;
+
+    @Setup
+    public void setUp() {
+        TimeInterceptor.reset();
+        config.apply();
+    }
+
+    @TearDown
+    public void tearDown() {
+        TimeInterceptor.reset();
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return TimeInterceptor.currentTimeMillis();
+    }
+
+    @Benchmark
+    public Instant currentInstant() {
+        return TimeInterceptor.currentInstant();
+    }
+
+    /**
+     * Режимы таймера
+     */
+    public enum Config {
+        DEFAULT {
+            @Override
+            void apply() {
+                TimeInterceptor.reset();
+            }
+        },
+        FIX {
+            @Override
+            void apply() {
+                TimeInterceptor.fix();
+            }
+        },
+        FIX_AT {
+            @Override
+            void apply() {
+                TimeInterceptor.fixAt(EPOCH_NS);
+            }
+        },
+        SHIFT {
+            @Override
+            void apply() {
+                TimeInterceptor.shift(TimeUnit.HOURS.toNanos(1L));
+            }
+        },
+        RESET_AT {
+            @Override
+            void apply() {
+                TimeInterceptor.resetAt(EPOCH_NS);
+            }
+        },
+        TICK {
+            @Override
+            void apply() {
+                TimeInterceptor.setTick(TimeUnit.MILLISECONDS.toNanos(10L));
+            }
+        },
+        TICK_POW2 {
+            @Override
+            void apply() {
+                TimeInterceptor.setTick(1L << 20);
+            }
+        },
+        ACCELERATOR {
+            @Override
+            void apply() {
+                TimeInterceptor.setAccelerator(60L, 1L);
+            }
+        },
+        ACCELERATOR_FRACTION {
+            @Override
+            void apply() {
+                TimeInterceptor.setAccelerator(7L, 3L);
+            }
+        },
+        UNIQUE_ATOMIC {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_ATOMIC);
+            }
+        },
+        UNIQUE_LOCK {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_LOCK);
+            }
+        },
+        UNIQUE_STRIPED {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_STRIPED);
+            }
+        },
+        UNIQUE_BOUNDED_SPIN {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_BOUNDED_SPIN);
+            }
+        },
+        UNIQUE_BOUNDED_BORROW {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_BOUNDED_BORROW);
+            }
+        },
+        UNIQUE_PER_THREAD {
+            @Override
+            void apply() {
+                TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_PER_THREAD);
+            }
+        };
+
+        abstract void apply();
+    }
+}
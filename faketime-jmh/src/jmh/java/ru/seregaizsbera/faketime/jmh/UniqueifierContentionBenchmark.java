@@ -0,0 +1,69 @@
+package ru.seregaizsbera.faketime.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Масштабирование вариантов обеспечения уникальности при росте числа потоков, одновременно
+ * читающих таймер. Результат выводится как суммарная пропускная способность всех потоков.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class UniqueifierContentionBenchmark {
+
+    @Param({"UNIQUE_ATOMIC", "UNIQUE_LOCK", "UNIQUE_STRIPED", "UNIQUE_BOUNDED_SPIN", "UNIQUE_BOUNDED_BORROW", "UNIQUE_PER_THREAD"})
+    public TimeInterceptor.Uniqueifier uniqueifier;
+
+    @Setup
+    public void setUp() {
+        TimeInterceptor.reset();
+        TimeInterceptor.setUniqueifier(uniqueifier);
+    }
+
+    @TearDown
+    public void tearDown() {
+        TimeInterceptor.reset();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads01() {
+        return TimeInterceptor.currentTimeMillis();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads04() {
+        return TimeInterceptor.currentTimeMillis();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long threads16() {
+        return TimeInterceptor.currentTimeMillis();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long threads64() {
+        return TimeInterceptor.currentTimeMillis();
+    }
+}
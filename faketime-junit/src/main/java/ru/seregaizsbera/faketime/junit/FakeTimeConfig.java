@@ -64,6 +64,16 @@ public interface FakeTimeConfig {
      */
     String name();
 
+    /**
+     * Устанавливать время в области действия собственного таймера, которая открывается в потоке теста,
+     * вместо общего таймера. Такие тесты можно запускать параллельно, см. {@link ru.seregaizsbera.faketime.FakeTime#openScope()}.
+     *
+     * @return {@code true} - время устанавливается в области теста, {@code false} - в общем таймере
+     */
+    default boolean scoped() {
+        return false;
+    }
+
     /**
      * Инструментальный класс для создания экземпляров объектов {@link FakeTimeConfig}
      */
@@ -79,6 +89,7 @@ public interface FakeTimeConfig {
         private long numerator = 1L;
         private long denominator = 1L;
         private FakeTimeUniqueifier uniqueifier = FakeTimeUniqueifier.NOTHING;
+        private boolean scoped = false;
         private final String name;
 
         private Builder(String name) {
@@ -185,13 +196,23 @@ public interface FakeTimeConfig {
             return this;
         }
 
+        /**
+         * Устанавливать время в области действия собственного таймера теста вместо общего таймера
+         * @param scoped {@code true} - время устанавливается в области теста
+         * @return этот объект
+         */
+        public Builder scoped(boolean scoped) {
+            this.scoped = scoped;
+            return this;
+        }
+
         /**
          * Создает новую конфигурацию на основании сохраненных параметров
          * @return новая конфигурация
          */
         public FakeTimeConfig build() {
             return new Value(mode, shift, shiftUnit, epoch, epochUnit, tick, tickUnit, timeZone,
-                    new Accelerator(numerator, denominator), uniqueifier, name);
+                    new Accelerator(numerator, denominator), uniqueifier, name, scoped);
         }
 
         private record Value(FakeTimeConfigMode mode,
@@ -201,7 +222,8 @@ public interface FakeTimeConfig {
                              String timeZone,
                              Accelerator accelerator,
                              FakeTimeUniqueifier uniqueifier,
-                             String name) implements FakeTimeConfig {
+                             String name,
+                             boolean scoped) implements FakeTimeConfig {
         }
     }
 
@@ -93,6 +93,12 @@ public @interface FakeTime {
      */
     FakeTimeUniqueifier uniqueifier() default FakeTimeUniqueifier.NOTHING;
 
+    /**
+     * Устанавливать время в области действия собственного таймера, которая открывается в потоке теста,
+     * вместо общего таймера. Такие тесты можно запускать параллельно.
+     */
+    boolean scoped() default false;
+
     /**
      * Изменение скорости таймера. Стандартная скорость умножается на числитель и делится на знаменатель.
      */
@@ -67,6 +67,7 @@ public class ValueFakeTimeProvider extends AnnotationBasedFakeTimeProvider<FakeT
                 .timeZone(annotation.timeZone())
                 .accelerate(annotation.accelerator().numerator(), annotation.accelerator().denominator())
                 .uniqueifier(annotation.uniqueifier())
+                .scoped(annotation.scoped())
                 .build();
     }
 }
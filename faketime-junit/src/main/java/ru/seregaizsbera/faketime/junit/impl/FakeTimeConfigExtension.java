@@ -7,7 +7,9 @@ import org.junit.jupiter.api.extension.ParameterContext;
 import org.junit.jupiter.api.extension.ParameterResolutionException;
 import org.junit.jupiter.api.extension.ParameterResolver;
 import ru.seregaizsbera.faketime.FakeTime;
+import ru.seregaizsbera.faketime.FakeTimeScope;
 import ru.seregaizsbera.faketime.FakeTimeUniqueifier;
+import ru.seregaizsbera.faketime.FakeTimeUpdate;
 import ru.seregaizsbera.faketime.junit.FakeTimeConfig;
 
 import java.time.ZoneId;
@@ -17,10 +19,14 @@ import java.util.TimeZone;
 /**
  * Тестовое расширение JUnit. Обрабатывает 1 конфигурацию теста и 1 вызов тестового метода.
  * Перед тестом устанавливает настройки времени. После теста сбрасывает настройки на значения по умолчанию.
+ * Если задан режим {@link FakeTimeConfig#scoped()}, настройки устанавливаются в области действия собственного
+ * таймера, которая открывается в потоке теста, а после теста область закрывается, и общий таймер не изменяется.
+ * Поэтому такие тесты с разными настройками времени могут выполняться параллельно, если они не меняют часовой пояс.
  * @param timeConfig настройки времени для теста
  */
 public record FakeTimeConfigExtension(FakeTimeConfig timeConfig) implements BeforeEachCallback, AfterEachCallback, ParameterResolver {
     private static final String FAKE_TIME_STORE_KEY = "fakeTime";
+    private static final String FAKE_TIME_SCOPE_STORE_KEY = "fakeTimeScope";
     private static final String CURRENT_TIME_ZONE_STORE_KEY = "currentTimeZone";
 
     @Override
@@ -36,21 +42,33 @@ public record FakeTimeConfigExtension(FakeTimeConfig timeConfig) implements Befo
                     TimeZone.setDefault(tz);
                 });
         FakeTime fakeTime = FakeTime.install();
-        store.put(FAKE_TIME_STORE_KEY, fakeTime);
+        if (timeConfig.scoped()) {
+            store.put(FAKE_TIME_SCOPE_STORE_KEY, fakeTime.openScope());
+        } else {
+            store.put(FAKE_TIME_STORE_KEY, fakeTime);
+        }
+        fakeTime.update(toUpdate(timeConfig));
+    }
+
+    /**
+     * Все настройки теста устанавливаются одним изменением, чтобы потоки, которые тест запускает,
+     * не застали таймер с частью настроек.
+     */
+    private static FakeTimeUpdate toUpdate(FakeTimeConfig timeConfig) {
+        var update = FakeTimeUpdate.builder();
+        long tickNs = Math.max(1L, Math.abs(timeConfig.tickUnit().toNanos(timeConfig.tick())));
         switch (timeConfig.mode()) {
-            case FIXED -> fakeTime.fix();
-            case FIXED_AT -> fakeTime.fixAt(timeConfig.epochUnit().toNanos(timeConfig.epoch()));
-            case SHIFTED -> {
-                fakeTime.shift(timeConfig.shift(), timeConfig.shiftUnit());
-                fakeTime.setTick(timeConfig.tickUnit().toNanos(timeConfig.tick()));
-            }
-            case RESET -> {
-                fakeTime.resetAt(timeConfig.epochUnit().toNanos(timeConfig.epoch()));
-                fakeTime.setTick(timeConfig.tickUnit().toNanos(timeConfig.tick()));
-            }
+            case FIXED -> update.fix();
+            case FIXED_AT -> update.fixAt(timeConfig.epochUnit().toNanos(timeConfig.epoch()));
+            case SHIFTED -> update.shift(timeConfig.shiftUnit().toNanos(timeConfig.shift())).tick(tickNs);
+            case RESET -> update.resetAt(timeConfig.epochUnit().toNanos(timeConfig.epoch())).tick(tickNs);
+        }
+        long numerator = timeConfig.accelerator().numerator();
+        long denominator = timeConfig.accelerator().denominator();
+        if (numerator > 0L && denominator > 0L) {
+            update.accelerate(numerator, denominator);
         }
-        fakeTime.setAccelerator(timeConfig.accelerator().numerator(), timeConfig.accelerator().denominator());
-        fakeTime.setUniqueifier(FakeTimeUniqueifier.valueOf(timeConfig.uniqueifier().name()));
+        return update.uniqueifier(FakeTimeUniqueifier.valueOf(timeConfig.uniqueifier().name())).build();
     }
 
     @Override
@@ -59,6 +77,9 @@ public record FakeTimeConfigExtension(FakeTimeConfig timeConfig) implements Befo
         Optional.of(CURRENT_TIME_ZONE_STORE_KEY)
                 .map(tz -> store.get(tz, TimeZone.class))
                 .ifPresent(TimeZone::setDefault);
+        Optional.of(FAKE_TIME_SCOPE_STORE_KEY)
+                .map(it -> store.get(it, FakeTimeScope.class))
+                .ifPresent(FakeTimeScope::close);
         Optional.of(FAKE_TIME_STORE_KEY)
                 .map(it -> store.get(it, FakeTime.class))
                 .ifPresent(FakeTime::reset);
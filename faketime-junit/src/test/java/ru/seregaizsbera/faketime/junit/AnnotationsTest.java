@@ -11,6 +11,7 @@ import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.IntStream;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -42,6 +43,13 @@ class AnnotationsTest {
         assertThat(System.currentTimeMillis()).isPositive();
     }
 
+    @Test
+    @FakeTime(mode = FIXED_AT, dateTime = "2019-02-22T04:00:34.123+03:00", scoped = true)
+    void testScopedAnnotation() {
+        assertThat(ZonedDateTime.now(ZoneOffset.UTC).getYear()).isEqualTo(2019);
+        assertThat(CompletableFuture.supplyAsync(() -> ZonedDateTime.now(ZoneOffset.UTC).getYear()).join()).isNotEqualTo(2019);
+    }
+
     @FakeTimeTest
     @FakeTime(name = "Стандартное системное время без изменений")
     @FakeTime(dateTime = "2012-12-12T23:59:57.123Z",           name = "Полночь UTC")
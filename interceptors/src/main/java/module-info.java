@@ -1,3 +1,4 @@
 module ru.seregaizsbera.faketime.interceptors {
+    requires jdk.jfr;
     exports ru.seregaizsbera.faketime.internal;
 }
@@ -0,0 +1,94 @@
+package ru.seregaizsbera.faketime.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Выборочный профилировщик мест, из которых читается таймер. Для выбранных обращений по стеку находится первый
+ * кадр за пределами перехватчиков, {@link System} и пакета {@code java.time}, и для него увеличивается счетчик.
+ * Таблица мест не блокируется при чтении и при увеличении счетчиков, блокировка нужна только при добавлении
+ * нового места.
+ */
+final class CallSiteProfiler {
+    /**
+     * Наибольшее количество различных потоков, которое запоминается для одного места
+     */
+    private static final int MAX_THREADS = 64;
+    private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static final Map<String, Site> sites = new ConcurrentHashMap<>();
+    private static volatile int sampleRate = 1;
+
+    private CallSiteProfiler() {}
+
+    /**
+     * Начать сбор заново
+     *
+     * @param rate в выборку попадает в среднем одно обращение из {@code rate}
+     */
+    static void start(int rate) {
+        sites.clear();
+        sampleRate = Math.max(1, rate);
+    }
+
+    static int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Учесть обращение к таймеру, если оно попало в выборку
+     */
+    static void sample() {
+        int rate = sampleRate;
+        if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            return;
+        }
+        Optional<StackWalker.StackFrame> caller = walker.walk(frames -> frames.filter(CallSiteProfiler::isCaller).findFirst());
+        if (caller.isEmpty()) {
+            return;
+        }
+        StackWalker.StackFrame frame = caller.get();
+        String key = frame.getClassName() + "." + frame.getMethodName()
+                + "(" + frame.getFileName() + ":" + frame.getLineNumber() + ")";
+        Site site = sites.get(key);
+        if (site == null) {
+            site = sites.computeIfAbsent(key, it -> new Site());
+        }
+        site.count.increment();
+        if (site.threads.size() < MAX_THREADS) {
+            site.threads.add(Thread.currentThread().getId());
+        }
+    }
+
+    private static boolean isCaller(StackWalker.StackFrame frame) {
+        Class<?> type = frame.getDeclaringClass();
+        return type != CallSiteProfiler.class
+                && type.getNestHost() != TimeInterceptor.class
+                && type != System.class
+                && !type.getPackageName().equals("java.time");
+    }
+
+    /**
+     * Снимок таблицы мест
+     *
+     * @return места в порядке убывания количества обращений
+     */
+    static List<TimeInterceptor.CallSite> snapshot() {
+        List<TimeInterceptor.CallSite> result = new ArrayList<>(sites.size());
+        sites.forEach((key, site) -> result.add(new TimeInterceptor.CallSite(key, site.count.sum(), site.threads.size())));
+        result.sort(Comparator.comparingLong(TimeInterceptor.CallSite::samples).reversed()
+                .thenComparing(TimeInterceptor.CallSite::site));
+        return result;
+    }
+
+    private static final class Site {
+        private final LongAdder count = new LongAdder();
+        private final Set<Long> threads = ConcurrentHashMap.newKeySet();
+    }
+}
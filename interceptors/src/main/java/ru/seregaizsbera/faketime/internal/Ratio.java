@@ -0,0 +1,125 @@
+package ru.seregaizsbera.faketime.internal;
+
+import java.math.BigInteger;
+
+/**
+ * Умножение на несократимую дробь без переполнения и без деления при каждом вызове.
+ * <p>
+ * Деление на знаменатель заменяется умножением на заранее вычисленное обратное число с фиксированной точкой
+ * и сдвигом: для знаменателя {@code d} и {@code l = ceil(log2 d)} множитель {@code m = ceil(2^(63 + l) / d)}
+ * помещается в 64 бита без знака, и для любого {@code 0 <= x < 2^63} выполняется
+ * {@code floor(x / d) = floor(x * m / 2^(63 + l))}. Знаменатель, равный степени двойки, заменяется сдвигом.
+ * Этот способ используется, когда произведение на числитель помещается в {@code long}. Иначе произведение
+ * вычисляется точно в 128 битах с помощью {@link Math#multiplyHigh(long, long)}, а результат, который
+ * не помещается в {@code long}, ограничивается значениями {@link Long#MAX_VALUE} и {@code -Long.MAX_VALUE}.
+ * Результат округляется к нулю, как при обычном делении {@code long}.
+ */
+final class Ratio {
+    private final long numerator;
+    private final long denominator;
+    /**
+     * Наибольшее значение, произведение которого на числитель помещается в {@code long}
+     */
+    private final long fastLimit;
+    /**
+     * Обратное к знаменателю число без знака, 0 - знаменатель равен степени двойки
+     */
+    private final long multiplier;
+    private final int shift;
+
+    /**
+     * @param numerator числитель, больше нуля
+     * @param denominator знаменатель, больше нуля
+     */
+    Ratio(long numerator, long denominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+        this.fastLimit = Long.MAX_VALUE / numerator;
+        if (Long.bitCount(denominator) == 1) {
+            this.multiplier = 0L;
+            this.shift = Long.numberOfTrailingZeros(denominator);
+        } else {
+            int log = Long.SIZE - Long.numberOfLeadingZeros(denominator - 1L);
+            this.multiplier = BigInteger.ONE.shiftLeft(63 + log).add(BigInteger.valueOf(denominator - 1L))
+                    .divide(BigInteger.valueOf(denominator)).longValue();
+            this.shift = log - 1;
+        }
+    }
+
+    /**
+     * Умножить значение на дробь
+     *
+     * @param value значение
+     * @return {@code value * numerator / denominator}, округленное к нулю и ограниченное диапазоном {@code long}
+     */
+    long apply(long value) {
+        if (value >= 0L && value <= fastLimit) {
+            return divide(value * numerator);
+        }
+        return applyExact(value);
+    }
+
+    /**
+     * Деление неотрицательного значения на знаменатель умножением и сдвигом
+     */
+    private long divide(long value) {
+        if (multiplier == 0L) {
+            return value >>> shift;
+        }
+        long high = Math.multiplyHigh(value, multiplier) + (multiplier >> 63 & value);
+        return high >>> shift;
+    }
+
+    /**
+     * Точное вычисление со 128-битным произведением для значений, произведение которых на числитель
+     * не помещается в {@code long}
+     */
+    private long applyExact(long value) {
+        if (value < 0L) {
+            return -applyExact(value == Long.MIN_VALUE ? Long.MAX_VALUE : -value);
+        }
+        if (value <= fastLimit) {
+            return divide(value * numerator);
+        }
+        long high = Math.multiplyHigh(value, numerator);
+        long low = value * numerator;
+        if (high >= denominator) {
+            return Long.MAX_VALUE;
+        }
+        long quotient = divide128(high, low);
+        return quotient < 0L ? Long.MAX_VALUE : quotient;
+    }
+
+    /**
+     * Деление 128-битного значения без знака на знаменатель. Старшая половина меньше знаменателя,
+     * поэтому частное помещается в 64 бита без знака.
+     */
+    private long divide128(long high, long low) {
+        long remainder = high;
+        long quotient = 0L;
+        for (int i = Long.SIZE - 1; i >= 0; i--) {
+            remainder = remainder << 1 | (low >>> i & 1L);
+            quotient <<= 1;
+            if (Long.compareUnsigned(remainder, denominator) >= 0) {
+                remainder -= denominator;
+                quotient |= 1L;
+            }
+        }
+        return quotient;
+    }
+
+    /**
+     * Остаток от деления 128-битного значения без знака на положительный делитель. Старшая половина
+     * меньше делителя.
+     */
+    static long remainder128(long high, long low, long divisor) {
+        long remainder = high;
+        for (int i = Long.SIZE - 1; i >= 0; i--) {
+            remainder = remainder << 1 | (low >>> i & 1L);
+            if (Long.compareUnsigned(remainder, divisor) >= 0) {
+                remainder -= divisor;
+            }
+        }
+        return remainder;
+    }
+}
@@ -0,0 +1,175 @@
+package ru.seregaizsbera.faketime.internal;
+
+import jdk.internal.misc.VM;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Последовательности значений таймера для воспроизведения, прочитанные из файла, отображенного в память.
+ * Файл отображается частями по 1 ГБ, поэтому его размер не ограничен размером одного буфера, а значения
+ * не загружаются в кучу.
+ * <p>
+ * Формат файла, все числа little-endian:
+ * <pre>
+ * 0  long  сигнатура {@value #MAGIC}
+ * 8  int   количество последовательностей
+ * 12 int   не используется
+ * 16       оглавление, для каждой последовательности:
+ *          long идентификатор потока, -1 - общая последовательность
+ *          long смещение первого значения от начала файла, кратно 8
+ *          long количество значений
+ *          значения, long - наносекунды после Unix Epoch
+ * </pre>
+ * Последовательности потоков помечены идентификаторами {@link Thread#getId()} потоков JVM, которая делала запись.
+ * JVM выдает идентификаторы по порядку создания потоков, поэтому при воспроизведении поток получает свою
+ * последовательность, только если потоки, в том числе служебные потоки JDK и библиотек, создаются в том же порядке,
+ * что и при записи. Если порядок отличается, последовательности достаются другим потокам, а воспроизведение
+ * общей последовательности от порядка создания потоков не зависит.
+ */
+final class ReplaySequence {
+    static final long MAGIC = 0x3130304C50525446L;
+    static final long GLOBAL = -1L;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1L;
+    private final MappedByteBuffer[] segments;
+    private final Section global;
+    private final Map<Long, Section> sections = new HashMap<>();
+
+    private ReplaySequence(MappedByteBuffer[] segments, long size) throws IOException {
+        this.segments = segments;
+        MappedByteBuffer header = segments[0];
+        int count = header.getInt(8);
+        if (count < 0 || 16L + 24L * count > header.limit()) {
+            throw new IOException("Поврежден заголовок файла последовательности (rphd)");
+        }
+        Section globalSection = null;
+        for (int i = 0; i < count; i++) {
+            int entry = 16 + 24 * i;
+            long threadId = header.getLong(entry);
+            long offset = header.getLong(entry + 8);
+            long length = header.getLong(entry + 16);
+            if (offset < 0L || (offset & 7L) != 0L || length < 0L || length > (size - offset) / 8L) {
+                throw new IOException("Повреждено оглавление файла последовательности (rpix)");
+            }
+            if (threadId == GLOBAL) {
+                globalSection = new Section(offset, length);
+            } else {
+                sections.put(threadId, new Section(offset, length));
+            }
+        }
+        this.global = globalSection != null ? globalSection : new Section(0L, 0L);
+    }
+
+    /**
+     * Открыть файл последовательностей
+     *
+     * @param file файл в формате, описанном в {@link ReplaySequence}
+     * @return последовательности из файла
+     * @throws IOException ошибка чтения или неверный формат файла
+     */
+    static ReplaySequence open(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16L) {
+                throw new IOException("Файл не является последовательностью значений таймера (rpmg)");
+            }
+            var segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_MASK + 1L, size - position));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (segments[0].getLong(0) != MAGIC) {
+                throw new IOException("Файл не является последовательностью значений таймера (rpmg)");
+            }
+            return new ReplaySequence(segments, size);
+        }
+    }
+
+    /**
+     * Общая последовательность
+     */
+    Section global() {
+        return global;
+    }
+
+    /**
+     * Последовательность потока или общая последовательность, если для потока значений нет
+     *
+     * @param threadId идентификатор потока, совпадающий с идентификатором потока, для которого делалась запись,
+     *                 только при одинаковом порядке создания потоков, см. {@link ReplaySequence}
+     */
+    Section forThread(long threadId) {
+        return sections.getOrDefault(threadId, global);
+    }
+
+    private long get(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    /**
+     * Одна последовательность значений с собственной позицией чтения
+     */
+    final class Section {
+        private final long offset;
+        private final long count;
+        private final AtomicLong next = new AtomicLong();
+        /**
+         * Системное время, когда последовательность закончилась, 0 - еще не закончилась
+         */
+        private final AtomicLong exhaustedRealNs = new AtomicLong();
+
+        private Section(long offset, long count) {
+            this.offset = offset;
+            this.count = count;
+        }
+
+        /**
+         * Выдать следующее значение
+         */
+        long next(TimeInterceptor.ReplayPolicy policy) {
+            long index = next.getAndIncrement();
+            if (index < count) {
+                return get(offset + 8L * index);
+            }
+            next.set(count);
+            return afterEnd(policy);
+        }
+
+        /**
+         * Последнее выданное значение или первое, если значения еще не выдавались. Позиция не изменяется.
+         */
+        long peek(TimeInterceptor.ReplayPolicy policy) {
+            if (exhaustedRealNs.get() != 0L) {
+                return afterEnd(policy == TimeInterceptor.ReplayPolicy.FAIL ? TimeInterceptor.ReplayPolicy.FREEZE : policy);
+            }
+            if (count == 0L) {
+                return VM.getNanoTimeAdjustment(0L);
+            }
+            long index = Math.min(next.get(), count) - 1L;
+            return get(offset + 8L * Math.max(0L, index));
+        }
+
+        private long afterEnd(TimeInterceptor.ReplayPolicy policy) {
+            long nowNs = VM.getNanoTimeAdjustment(0L);
+            if (exhaustedRealNs.get() == 0L) {
+                exhaustedRealNs.compareAndSet(0L, nowNs);
+            }
+            long anchorNs = exhaustedRealNs.get();
+            long lastNs = count > 0L ? get(offset + 8L * (count - 1L)) : anchorNs;
+            return switch (policy) {
+                case FREEZE -> lastNs;
+                case CONTINUE -> lastNs + (nowNs - anchorNs);
+                case FAIL -> throw new IllegalStateException("Последовательность значений таймера закончилась (rpex)");
+            };
+        }
+    }
+}
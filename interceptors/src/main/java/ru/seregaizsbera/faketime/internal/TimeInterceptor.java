@@ -1,14 +1,35 @@
 package ru.seregaizsbera.faketime.internal;
 
+import jdk.internal.misc.Unsafe;
 import jdk.internal.misc.VM;
+import jdk.internal.perf.Perf;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timestamp;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.LongBinaryOperator;
-import java.util.function.LongUnaryOperator;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Данный класс содержит реализации системных методов, которые будут подставлены агентом
@@ -29,23 +50,328 @@ import java.util.function.LongUnaryOperator;
 public final class TimeInterceptor {
     private static final long NANOS_PER_SEC = 1_000_000_000L;
     private static final long NANOS_PER_MS = 1_000_000L;
-    private static final LongUnaryOperator ZERO = l -> 0L;
+    private static final long MILLIS_PER_SEC = 1_000L;
+    /**
+     * Минимальный размер такта, начиная с которого объект {@link Instant} создается один раз на такт
+     */
+    private static final long COARSE_TICK_NS = NANOS_PER_MS;
+    /**
+     * Общий таймер. Хранится в корневой области, которая не закрывается и в которую не переходят потоки.
+     */
+    private static final Scope root = new Scope(null, new Frame(State.of(Settings.DEFAULT), null, 0L, Modes.DEFAULT), 0L);
+    /**
+     * Классы пулов, потоки которых выполняют задачи разных областей и поэтому не наследуют область
+     * потока, в котором они созданы
+     */
+    private static final Set<String> POOL_CLASSES = Set.of("java.util.concurrent.ForkJoinPool", "java.util.concurrent.ThreadPoolExecutor");
+    private static final StackWalker walker = StackWalker.getInstance();
+    /**
+     * Область действия собственного таймера для текущего потока, см. {@link #openScope()}.
+     * Потоки пулов создаются по требованию в том потоке, который передал задачу, и выполняют потом задачи
+     * любых областей, поэтому область им не передается, см. {@link #isPoolWorker()}.
+     */
+    private static final InheritableThreadLocal<Scope> scope = new InheritableThreadLocal<>() {
+        @Override
+        protected Scope childValue(Scope parentValue) {
+            return parentValue == null || isPoolWorker() ? null : parentValue;
+        }
+    };
+    /**
+     * Выполняет ли текущий поток код приложения, а не служебную работу: это не фоновый поток и не поток пула.
+     * Только ожидания таких потоков сдвигают остановленный общий таймер, см. {@link #toRealWaitNs(long)}:
+     * фоновые потоки и потоки пулов ждут с тайм-аутом постоянно, пулы так держат простаивающие потоки,
+     * а служебные потоки так просыпаются по расписанию, и если бы их ожидания сдвигали таймер, он шел бы
+     * без участия теста. По той же причине при воспроизведении общей последовательности только такие потоки
+     * получают исключение после ее окончания, см. {@link ReplayPolicy#FAIL}. Вычисляется при первом обращении потока.
+     */
+    private static final ThreadLocal<Boolean> foreground = ThreadLocal.withInitial(
+            () -> !Thread.currentThread().isDaemon() && !isPoolWorker());
+    /**
+     * Количество открытых областей. Пока их нет, обращение к {@link #scope} не требуется.
+     */
+    private static final AtomicInteger openScopes = new AtomicInteger();
+    /**
+     * Обработчик обращений к таймеру: счетчики для {@link #getStatistics()}
+     */
+    private static final int PROBE_COUNTERS = 1;
+    /**
+     * Обработчик обращений к таймеру: события JFR, см. {@link #setClockReadSampling(long)}
+     */
+    private static final int PROBE_EVENTS = 2;
+    /**
+     * Обработчик обращений к таймеру: профилировщик мест обращения, см. {@link #startCallSiteProfiling(int)}
+     */
+    private static final int PROBE_PROFILER = 4;
+    /**
+     * Обработчик обращений к таймеру: запись выданных значений в файл, см. {@link #startRecording(Path, int, int)}
+     */
+    private static final int PROBE_RECORDER = 8;
+    private static final VarHandle PROBES;
+    static {
+        try {
+            PROBES = MethodHandles.lookup().findStaticVarHandle(TimeInterceptor.class, "probes", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    /**
+     * Маска включенных обработчиков обращений к таймеру. Пока она равна 0, обращения ничем не замедляются.
+     */
+    private static volatile int probes = 0;
+    /**
+     * Получатель сообщений об изменениях таймера, см. {@link #setListener(Consumer)}
+     */
     @SuppressWarnings("java:S3077")
-    private static volatile State state = new State(VM::getNanoTimeAdjustment, 0L, 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+    private static volatile Consumer<Transition> listener = null;
+    /**
+     * Сумма продвижений общего таймера, о которых уже сообщено, см. {@link #takeAdvance()}
+     */
+    private static final AtomicLong reportedAdvanceNs = new AtomicLong();
     private TimeInterceptor() {}
 
     /**
-     * Сбросить вск настройки таймера к системным значениям по умолчанию
+     * Проверить, выполняется ли текущий поток внутри пула {@link #POOL_CLASSES}. В потоке, который создает
+     * новый поток, это значит, что новый поток создается пулом, а в потоке пула - что это поток пула.
+     */
+    private static boolean isPoolWorker() {
+        return walker.walk(frames -> frames.anyMatch(frame -> POOL_CLASSES.contains(frame.getClassName())));
+    }
+
+    /**
+     * Текущее состояние таймера: состояние открытой области, если поток находится в ней, иначе общее состояние
+     */
+    private static State currentState() {
+        return currentScope().frame.state();
+    }
+
+    /**
+     * Открытая область, в которой находится текущий поток. Позволяет обращаться к таймеру области
+     * из других потоков, см. {@link Scope#currentEpochNs()} и {@link Scope#advance(long)}.
+     *
+     * @return область или {@link #root}, если поток использует общее состояние таймера. {@link #root} закрыть нельзя.
+     */
+    public static Scope currentScope() {
+        if (openScopes.get() != 0) {
+            Scope current = scope.get();
+            if (current != null && !current.closed) {
+                return current;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Установить новое состояние таймера. Все изменения таймера проходят через этот метод: новое состояние
+     * вычисляется из текущего и устанавливается атомарно вместе с пересчитанным виртуальным счетчиком наносекунд,
+     * поэтому изменения, сделанные одновременно из разных потоков, не теряются, а счетчик всегда соответствует
+     * установленному состоянию. Если область закрыта, ничего не делает.
+     *
+     * @param operation имя метода, изменившего состояние, для события JFR
+     * @param owner область, состояние которой изменяется
+     * @param change вычисление нового состояния
+     * @param nanoDeltaNs интервал, на который дополнительно продвигается виртуальный счетчик наносекунд
+     * @return {@code true}, если состояние изменилось
+     */
+    private static boolean publish(String operation, Scope owner, Change change, long nanoDeltaNs) {
+        return publish(operation, owner, UnaryOperator.identity(), change, nanoDeltaNs);
+    }
+
+    /**
+     * Установить новое состояние таймера и новые режимы области, которые применяются к нему, см. {@link Modes}
+     *
+     * @param modesChange вычисление новых режимов из текущих
+     */
+    private static boolean publish(String operation, Scope owner, UnaryOperator<Modes> modesChange, Change change, long nanoDeltaNs) {
+        while (!owner.closed) {
+            Frame current = owner.frame;
+            long totalNs = owner.advancedNs;
+            long advancedNs = totalNs - current.advancedNs();
+            State previous = current.state();
+            State next = change.apply(previous, advancedNs);
+            if (next == null) {
+                return false;
+            }
+            Modes modes = modesChange.apply(current.modes());
+            next = guard(previous, next, modes);
+            NanoClock clock = current.nanoClock();
+            Frame updated = new Frame(next, clock == null ? null : clock.rebase(next.settings, nanoDeltaNs), totalNs, modes);
+            if (Scope.FRAME.compareAndSet(owner, current, updated)) {
+                published(operation, owner, previous, advancedNs, next);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean publish(String operation, Change change) {
+        return publish(operation, currentScope(), change, 0L);
+    }
+
+    /**
+     * Сообщить об установке нового состояния: событие JFR и получатель {@link #setListener(Consumer)}
+     */
+    private static void published(String operation, Scope owner, State previous, long advancedNs, State next) {
+        boolean scoped = owner != root;
+        if (Coarse.of(next) != null) {
+            CoarseTicker.register(owner);
+        }
+        StateChangeEvent.emit(operation, scoped, previous.effectiveSettings(advancedNs), next.settings);
+        Consumer<Transition> target = listener;
+        if (target != null) {
+            target.accept(new Transition(operation, scoped, parametersOf(previous, advancedNs), parametersOf(next, 0L),
+                    next.peekEpochNs(0L) - previous.peekEpochNs(advancedNs)));
+        }
+    }
+
+    /**
+     * Установить получателя сообщений об изменениях таймера. Получатель вызывается в потоке, изменившем таймер,
+     * после установки нового состояния, поэтому он не должен блокироваться и обращаться к методам,
+     * изменяющим таймер. Сообщается о каждом новом состоянии. О вызовах {@link #advance(long)} получатель
+     * не извещается, чтобы продвижение оставалось одной атомарной операцией: сумму продвижений общего таймера
+     * с предыдущего раза забирает метод {@link #takeAdvance()}.
+     * Переходы программы {@link #program(List)}, плавного сдвига и воспроизведения не являются изменениями
+     * состояния, о них не сообщается.
+     *
+     * @param target получатель или {@code null}, чтобы не сообщать об изменениях
+     */
+    public static void setListener(Consumer<Transition> target) {
+        if (target != null) {
+            reportedAdvanceNs.set(root.advancedNs);
+        }
+        listener = target;
+    }
+
+    /**
+     * Забрать продвижения общего таймера методом {@link #advance(long)}, сделанные после предыдущего вызова
+     * или после установки получателя {@link #setListener(Consumer)}, в виде одного перехода.
+     *
+     * @return переход с суммой продвижений или {@code null}, если таймер не продвигался
+     */
+    public static Transition takeAdvance() {
+        Frame current = root.frame;
+        long totalNs = root.advancedNs;
+        long deltaNs = totalNs - reportedAdvanceNs.getAndSet(totalNs);
+        if (deltaNs <= 0L) {
+            return null;
+        }
+        Parameters next = parametersOf(current.state(), totalNs - current.advancedNs());
+        return new Transition("advance", false, next.withShiftNs(next.shiftNs() - deltaNs), next, deltaNs);
+    }
+
+    /**
+     * Применить к новому состоянию режимы области, которые не сбрасываются изменениями таймера: грубый таймер
+     * и защиту от перевода таймера назад. Наибольшее выданное значение переходит к новому состоянию от прежнего.
+     * Ячейку нового грубого таймера начинает обновлять {@link CoarseTicker} после установки состояния.
+     */
+    private static State guard(State previous, State next, Modes modes) {
+        long periodNs = modes.coarseNs();
+        State base = next.unwrap();
+        if (periodNs != 0L && !(base instanceof Frozen)) {
+            base = new Coarse(base, periodNs);
+        }
+        if (!modes.monotonic()) {
+            return base;
+        }
+        AtomicLong highWaterNs = previous instanceof Monotonic guarded ? guarded.highWaterNs : new AtomicLong(Long.MIN_VALUE);
+        return new Monotonic(base, highWaterNs);
+    }
+
+    /**
+     * Сбросить все настройки таймера к системным значениям по умолчанию
      */
     public static void reset() {
-        state = new State(VM::getNanoTimeAdjustment, 0L, 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+        publish("reset", currentScope(), modes -> Modes.DEFAULT, (current, advancedNs) -> State.of(Settings.DEFAULT), 0L);
+    }
+
+    /**
+     * Запретить таймеру идти назад. Если таймер переводится назад, он выдает наибольшее из выданных значений,
+     * пока не догонит его. Запрет действует в области, в которой находится поток, до отмены или до вызова
+     * {@link #reset()} и не сбрасывается другими изменениями таймера.
+     *
+     * @param enabled {@code true} - значения таймера не уменьшаются
+     */
+    public static void setMonotonic(boolean enabled) {
+        Scope owner = currentScope();
+        if (owner.frame.modes().monotonic() == enabled) {
+            return;
+        }
+        publish("setMonotonic", owner, modes -> new Modes(enabled, modes.coarseNs()),
+                (current, advancedNs) -> current.unwrap().advanced(advancedNs), 0L);
+    }
+
+    /**
+     * Выдавать значения таймера из ячейки, которую фоновый поток обновляет с указанным периодом.
+     * Обращение к таймеру сводится к чтению ячейки без обращения к системному таймеру и без вычислений,
+     * но значения меняются только раз в период. Значение ячейки вычисляется по всем настройкам таймера,
+     * кроме функции уникальности. Режим действует в области, в которой находится поток, и не сбрасывается
+     * другими изменениями таймера, кроме {@link #reset()}. Ячейки всех областей обновляет один фоновый поток, который запускается при первом включении режима,
+     * поэтому изменения таймера не создают потоков. Остановленный таймер выдает готовое значение и без этого
+     * режима, поэтому для него ячейка не используется.
+     *
+     * @param periodNs период обновления в наносекундах, 0 или меньше - отключить режим
+     */
+    public static void setCoarse(long periodNs) {
+        long normalizedNs = Math.max(0L, periodNs);
+        Scope owner = currentScope();
+        if (owner.frame.modes().coarseNs() == normalizedNs) {
+            return;
+        }
+        publish("setCoarse", owner, modes -> new Modes(modes.monotonic(), normalizedNs),
+                (current, advancedNs) -> current.unwrap().advanced(advancedNs), 0L);
+    }
+
+    /**
+     * Продвинуть таймер вперед на указанный интервал. В отличие от {@link #shift(long)} сдвиг не заменяется,
+     * а увеличивается, и новое состояние не создается: интервал атомарно прибавляется к счетчику продвижений
+     * области, в которой находится поток, а при чтении таймера прибавляется к его значению. Поэтому вызов
+     * не создает объектов, безопасен при параллельных вызовах из разных потоков и не теряется при одновременном
+     * изменении таймера: новое состояние учитывает продвижения, прочитанные при его вычислении, а остальные
+     * продолжают прибавляться к нему. Продвижение внутри области {@link #openScope()} не затрагивает общий таймер.
+     * {@link #nanoTime()} не продвигается. Получатель {@link #setListener(Consumer)} о вызове не извещается,
+     * продвижения общего таймера забираются методом {@link #takeAdvance()}. Если интервал меньше или равен нулю,
+     * то ничего не делает.
+     *
+     * @param deltaNs интервал в наносекундах
+     */
+    public static void advance(long deltaNs) {
+        currentScope().advance(deltaNs);
+    }
+
+    /**
+     * Плавно сдвинуть время относительно системного таймера. Вместо скачка таймер идет быстрее или медленнее
+     * системного, пока разница с системным таймером не станет равна указанному сдвигу. Скорость таймера
+     * во время перехода постоянна и вычисляется при каждом обращении, фоновых потоков нет. Чтобы таймер
+     * не шел назад и не останавливался, при переводе назад переход удлиняется так, чтобы таймер
+     * замедлялся не более чем вдвое. Так же при переводе вперед переход удлиняется так, чтобы таймер
+     * ускорялся не более чем вдвое, иначе короткий переход на большой сдвиг не отличался бы от скачка.
+     *
+     * @param shiftNs итоговый сдвиг в наносекундах
+     * @param durationNs продолжительность перехода по системному таймеру в наносекундах
+     */
+    public static void slew(long shiftNs, long durationNs) {
+        Settings settings = new Settings(false, shiftNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+        publish("slew", (current, advancedNs) -> {
+            long realNs = VM.getNanoTimeAdjustment(0L);
+            long epochNs = current.peekEpochNs(advancedNs);
+            long deltaNs = realNs + shiftNs - epochNs;
+            long lengthNs = Math.max(durationNs, deltaNs < 0L ? saturatedDouble(deltaNs) : deltaNs);
+            if (lengthNs <= 0L || deltaNs == 0L) {
+                return State.of(settings);
+            }
+            return new Slewing(settings, realNs, epochNs, lengthNs, deltaNs);
+        });
+    }
+
+    private static long saturatedDouble(long deltaNs) {
+        long absNs = deltaNs == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(deltaNs);
+        return absNs > Long.MAX_VALUE / 2L ? Long.MAX_VALUE : absNs * 2L;
     }
 
     /**
      * Остановить таймер на текущем системном времени
      */
     public static void fix() {
-        state = new State(ZERO, VM.getNanoTimeAdjustment(0L), 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+        update("fix", new Update().fix());
     }
 
     /**
@@ -55,7 +381,7 @@ public final class TimeInterceptor {
      * @param epochNs количество наносекунд после Unix Epoch
      */
     public static void fixAt(long epochNs) {
-        state = new State(ZERO, epochNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+        update("fixAt", new Update().fixAt(epochNs));
     }
 
     /**
@@ -64,7 +390,7 @@ public final class TimeInterceptor {
      * @param shiftNs размер сдвига в наносекундах
      */
     public static void shift(long shiftNs) {
-        state = new State(VM::getNanoTimeAdjustment, shiftNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+        update("shift", new Update().shift(shiftNs));
     }
 
     /**
@@ -73,7 +399,56 @@ public final class TimeInterceptor {
      * @param epochNs количество наносекунд после Unix Epoch
      */
     public static void resetAt(long epochNs) {
-        state = new State(VM::getNanoTimeAdjustment, epochNs - VM.getNanoTimeAdjustment(0L), 1L, Accelerator.UNIT, Uniqueifier.NOTHING.operator);
+        update("resetAt", new Update().resetAt(epochNs));
+    }
+
+    /**
+     * Изменить несколько настроек таймера одним действием. Новое состояние вычисляется из текущего и
+     * устанавливается атомарно, поэтому другие потоки не видят промежуточных сочетаний настроек,
+     * а изменения, сделанные одновременно из разных потоков, не теряются.
+     *
+     * @param update изменяемые настройки
+     */
+    public static void update(Update update) {
+        update("update", update);
+    }
+
+    private static void update(String operation, Update update) {
+        publish(operation, update::apply);
+    }
+
+    /**
+     * Выдавать значения таймера из записанной последовательности. Файл отображается в память,
+     * поэтому значения не загружаются в кучу. Формат файла описан в {@link ReplaySequence}.
+     * Последовательности потоков сопоставляются по идентификаторам потоков JVM, которая делала запись,
+     * см. {@link ReplaySequence#forThread(long)}.
+     *
+     * @param file файл с последовательностями значений
+     * @param perThread {@code true} - каждый поток получает значения своей последовательности,
+     *                  а если ее нет, то общей; {@code false} - все потоки получают значения общей последовательности по очереди
+     * @param policy поведение таймера, когда последовательность закончилась
+     */
+    public static void replay(Path file, boolean perThread, ReplayPolicy policy) {
+        ReplaySequence sequence;
+        try {
+            sequence = ReplaySequence.open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        publish("replay", (current, advancedNs) -> new Replayed(sequence, perThread, policy, 0L));
+    }
+
+    /**
+     * Установить программу изменения таймера. Отрезки программы отсчитываются по системному таймеру
+     * от момента вызова. Значение таймера вычисляется при каждом обращении поиском отрезка в массиве,
+     * поэтому таймер переходит от отрезка к отрезку без фоновых потоков и блокировок.
+     * Если первый отрезок начинается не сразу, до его начала таймер идет с обычной скоростью от текущего значения.
+     *
+     * @param segments отрезки в порядке начала
+     */
+    public static void program(List<Segment> segments) {
+        publish("program", (current, advancedNs) -> new Programmed(VM.getNanoTimeAdjustment(0L), current.peekEpochNs(advancedNs),
+                segments));
     }
 
     /**
@@ -82,22 +457,13 @@ public final class TimeInterceptor {
      *
      * @param numerator числитель
      * @param denominator знаменатель
+     * @throws IllegalStateException если таймер работает по программе или воспроизводит записанные значения
      */
     public static void setAccelerator(long numerator, long denominator) {
         if (numerator <= 0L || denominator <= 0L) {
             return;
         }
-        long gcd = computeGCD(numerator, denominator);
-        numerator /= gcd;
-        denominator /= gcd;
-        LongUnaryOperator accelerator;
-        State current = state;
-        if (numerator == denominator) {
-            accelerator = Accelerator.UNIT;
-        } else {
-            accelerator= new Accelerator(current.counterNs.applyAsLong(0L), numerator, denominator);
-        }
-        state = new State(current.counterNs, current.shiftNs, current.tickNs, accelerator, current.uniqueifier);
+        update("setAccelerator", new Update().accelerator(numerator, denominator));
     }
 
     /**
@@ -116,18 +482,10 @@ public final class TimeInterceptor {
      * Установить такт таймера. Все значения таймера будут кратны указанному такту.
      *
      * @param tickNs размер такта в наносекундах
+     * @throws IllegalStateException если таймер работает по программе или воспроизводит записанные значения
      */
     public static void setTick(long tickNs) {
-        if (tickNs < 0L) {
-            tickNs = Math.abs(tickNs);
-        }
-        if (tickNs <= 0L) {
-            tickNs = 1L;
-        }
-        State current = state;
-        if (tickNs != current.tickNs) {
-            state = new State(current.counterNs, current.shiftNs, tickNs, current.accelerator, Uniqueifier.NOTHING.operator);
-        }
+        update("setTick", new Update().tick(tickNs));
     }
 
     /**
@@ -135,13 +493,10 @@ public final class TimeInterceptor {
      * сбрасывают {@code uniqueifier} на пустую функцию.
      *
      * @param uniqueifier функция, модифицирующая результат
+     * @throws IllegalStateException если таймер работает по программе или воспроизводит записанные значения
      */
     public static void setUniqueifier(Uniqueifier uniqueifier) {
-        State current = state;
-        if (uniqueifier.operator == current.uniqueifier) {
-            return;
-        }
-        state = new State(current.counterNs, current.shiftNs, current.tickNs, current.accelerator, uniqueifier.operator);
+        update("setUniqueifier", new Update().uniqueifier(uniqueifier));
     }
 
     /**
@@ -151,7 +506,34 @@ public final class TimeInterceptor {
      */
     @SuppressWarnings("unused")
     public static long currentTimeMillis() {
-        return state.getEpochNs() / NANOS_PER_MS;
+        long result = currentScope().getEpochMs();
+        int enabled = probes;
+        if (enabled != 0) {
+            onRead(enabled, false, result * NANOS_PER_MS);
+        }
+        return result;
+    }
+
+    /**
+     * Передать прочитанное значение таймера включенным обработчикам
+     *
+     * @param enabled маска включенных обработчиков {@link #probes}
+     * @param instant {@code true} для {@link #currentInstant()}, {@code false} для {@link #currentTimeMillis()}
+     * @param epochNs выданное значение таймера
+     */
+    private static void onRead(int enabled, boolean instant, long epochNs) {
+        if ((enabled & PROBE_COUNTERS) != 0) {
+            (instant ? Counters.currentInstantCalls : Counters.currentTimeMillisCalls).increment();
+        }
+        if ((enabled & PROBE_EVENTS) != 0) {
+            ClockReadEvent.sample(instant, epochNs);
+        }
+        if ((enabled & PROBE_PROFILER) != 0) {
+            CallSiteProfiler.sample();
+        }
+        if ((enabled & PROBE_RECORDER) != 0) {
+            TimestampRecorder.record(instant, epochNs);
+        }
     }
 
     /**
@@ -161,101 +543,2234 @@ public final class TimeInterceptor {
      */
     @SuppressWarnings("unused")
     public static Instant currentInstant() {
-        long epochNs = state.getEpochNs();
-        return Instant.ofEpochSecond(epochNs / NANOS_PER_SEC, epochNs % NANOS_PER_SEC);
+        Instant result = currentScope().getInstant();
+        int enabled = probes;
+        if (enabled != 0) {
+            onRead(enabled, true, result.getEpochSecond() * NANOS_PER_SEC + result.getNano());
+        }
+        return result;
     }
 
-    private record Accelerator(long zeroPointEpochNs, long numerator, long denominator) implements LongUnaryOperator {
-        private static final LongUnaryOperator UNIT = LongUnaryOperator.identity();
-        @Override
-        public long applyAsLong(long epochNs) {
-            return (epochNs - zeroPointEpochNs) * numerator / denominator + zeroPointEpochNs;
+    /**
+     * Включить виртуальный счетчик {@link #nanoTime()}. В момент включения он совпадает с системным счетчиком.
+     * Должен быть вызван до того, как {@link System#nanoTime()} будет подменен.
+     */
+    public static void enableNanoTime() {
+        while (true) {
+            Frame current = root.frame;
+            if (current.nanoClock() != null) {
+                return;
+            }
+            long realNs = NanoClock.realNanoTime();
+            var clock = new NanoClock(realNs, realNs, current.state().settings);
+            if (Scope.FRAME.compareAndSet(root, current, new Frame(current.state(), clock, current.advancedNs(), current.modes()))) {
+                return;
+            }
         }
     }
 
     /**
-     * Состояние системного таймера. Собрано в отдельный неизменяемый объект для
-     * обеспечения параллельного доступа.
+     * Реализация метода {@link System#nanoTime()}. Монотонный счетчик, скорость которого совпадает со скоростью
+     * таймера: он ускоряется вместе с таймером и останавливается при остановке таймера. Сдвиги таймера
+     * на счетчик не влияют, поэтому он никогда не идет назад.
      *
-     * @param counterNs счетчик наносекунд
-     * @param shiftNs сдвиг времени относительно счетчика
-     * @param tickNs размер такта
-     * @param uniqueifier функция, применяемая к результату после всех вычислений
+     * @return значение виртуального счетчика наносекунд
+     */
+    @SuppressWarnings("unused")
+    public static long nanoTime() {
+        NanoClock clock = root.frame.nanoClock();
+        return clock == null ? NanoClock.realNanoTime() : clock.nanoTime();
+    }
+
+    /**
+     * Реализация метода {@link Thread#sleep(long)}. Ожидание длится столько, сколько нужно таймеру, чтобы
+     * с учетом его скорости продвинуться на указанный интервал. Если таймер остановлен, ожидания нет,
+     * вместо этого остановленный таймер сдвигается на указанный интервал. Фоновые потоки и потоки пулов
+     * остановленный таймер не сдвигают и ждут реальное время, см. {@link #foreground}. Ожидания
+     * отсчитываются по общему таймеру, как и {@link #nanoTime()}, даже в области {@link #openScope()}: иначе ожидания с тайм-аутом,
+     * которые проверяют {@link System#nanoTime()}, при остановленном таймере области выполнялись бы
+     * в цикле без ожидания, сдвигая таймер области.
+     *
+     * @param millis длительность ожидания по таймеру в миллисекундах
+     * @throws InterruptedException если поток был прерван
      */
-    private record State(LongUnaryOperator counterNs, long shiftNs, long tickNs, LongUnaryOperator accelerator, LongBinaryOperator uniqueifier) {
-        public long getEpochNs() {
-            long epochNs = accelerator.applyAsLong(counterNs.applyAsLong(0L)) + shiftNs;
-            return uniqueifier.applyAsLong(epochNs - (epochNs % tickNs), tickNs);
+    @SuppressWarnings("unused")
+    public static void sleep(long millis) throws InterruptedException {
+        if (millis < 0L) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException("sleep interrupted");
+        }
+        long realNs = toRealWaitNs(millis > Long.MAX_VALUE / NANOS_PER_MS ? Long.MAX_VALUE : millis * NANOS_PER_MS);
+        if (realNs <= 0L) {
+            return;
+        }
+        long startNs = NanoClock.realNanoTime();
+        long leftNs = realNs;
+        while (leftNs > 0L) {
+            Parking.park(leftNs);
+            if (Thread.interrupted()) {
+                throw new InterruptedException("sleep interrupted");
+            }
+            leftNs = realNs - (NanoClock.realNanoTime() - startNs);
         }
     }
 
     /**
-     * Варианты реализации функции, обеспечивающей уникальность
-     * значений, возвращаемых при каждом обращении к таймеру
+     * Реализация метода {@link java.util.concurrent.locks.LockSupport#parkNanos(long)}
+     *
+     * @param nanos длительность ожидания по таймеру
      */
-    public enum Uniqueifier {
-        /**
-         * Значения таймера выдаются без изменений
-         */
-        NOTHING((epochNs, tickNs) -> epochNs),
-        /**
-         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
-         * Синхронизация параллельного доступа обеспечивается значением атомарной переменной.
-         */
-        UNIQUE_ATOMIC(AtomicUniqueifier.instance),
-        /**
-         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
-         * Синхронизация параллельного доступа обеспечивается блокировкой.
-         */
-        UNIQUE_LOCK(LockUniqueifier.instance);
+    @SuppressWarnings("unused")
+    public static void parkNanos(long nanos) {
+        if (nanos > 0L) {
+            long realNs = toRealWaitNs(nanos);
+            if (realNs > 0L) {
+                Parking.park(realNs);
+            }
+        }
+    }
+
+    /**
+     * Реализация метода {@link java.util.concurrent.locks.LockSupport#parkNanos(Object, long)}
+     *
+     * @param blocker объект, из-за которого поток ожидает
+     * @param nanos длительность ожидания по таймеру
+     */
+    @SuppressWarnings("unused")
+    public static void parkNanos(Object blocker, long nanos) {
+        if (nanos > 0L) {
+            long realNs = toRealWaitNs(nanos);
+            if (realNs > 0L) {
+                Parking.parkWithBlocker(blocker, realNs);
+            }
+        }
+    }
 
-        private final LongBinaryOperator operator;
+    /**
+     * Реализация метода {@link java.util.concurrent.locks.LockSupport#parkUntil(long)}
+     *
+     * @param deadline момент окончания ожидания по таймеру в миллисекундах после Unix Epoch
+     */
+    @SuppressWarnings("unused")
+    public static void parkUntil(long deadline) {
+        long realNs = toRealWaitNs(untilNs(deadline));
+        if (realNs > 0L) {
+            Parking.park(realNs);
+        }
+    }
 
-        Uniqueifier(LongBinaryOperator operator) {
-            this.operator = operator;
+    /**
+     * Реализация метода {@link java.util.concurrent.locks.LockSupport#parkUntil(Object, long)}
+     *
+     * @param blocker объект, из-за которого поток ожидает
+     * @param deadline момент окончания ожидания по таймеру в миллисекундах после Unix Epoch
+     */
+    @SuppressWarnings("unused")
+    public static void parkUntil(Object blocker, long deadline) {
+        long realNs = toRealWaitNs(untilNs(deadline));
+        if (realNs > 0L) {
+            Parking.parkWithBlocker(blocker, realNs);
         }
     }
 
     /**
-     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_ATOMIC}.
+     * Интервал по таймеру до указанного момента
      */
-    private static final class AtomicUniqueifier implements LongBinaryOperator {
-        private static final AtomicUniqueifier instance = new AtomicUniqueifier();
-        private final AtomicLong lastResultNs = new AtomicLong(Long.MIN_VALUE);
-        @Override
-        public long applyAsLong(long epochNs, long tickNs) {
-            while (true) {
-                long lastNs = lastResultNs.get();
-                if (epochNs <= lastNs) {
-                    epochNs = lastNs + tickNs;
-                }
-                if (lastResultNs.compareAndSet(lastNs, epochNs)) {
-                    return epochNs;
-                }
-            }
+    private static long untilNs(long deadlineMs) {
+        if (deadlineMs > Long.MAX_VALUE / NANOS_PER_MS) {
+            return Long.MAX_VALUE;
         }
+        if (deadlineMs < Long.MIN_VALUE / NANOS_PER_MS) {
+            return 0L;
+        }
+        return deadlineMs * NANOS_PER_MS - currentScope().peekEpochNs();
     }
 
     /**
-     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_LOCK}.
+     * Длительность реального ожидания, за которое общий таймер продвинется на указанный интервал.
+     * Остановленный таймер сдвигается на этот интервал, и ждать не нужно. Потоки, которым сдвигать
+     * таймер нельзя, ждут реальное время.
+     *
+     * @param fakeNs интервал по таймеру
+     * @return длительность реального ожидания или 0, если ждать не нужно
      */
-    private static final class LockUniqueifier implements LongBinaryOperator {
-        private static final LockUniqueifier instance = new LockUniqueifier();
-        private final Lock lock = new ReentrantLock();
-        private long lastResultNs = Long.MIN_VALUE;
-        @Override
-        public long applyAsLong(long epochNs, long tickNs) {
-            lock.lock();
-            try {
-                long lastNs = lastResultNs;
-                if (epochNs <= lastNs) {
-                    epochNs = lastNs + tickNs;
-                }
-                lastResultNs = epochNs;
-                return epochNs;
-            } finally {
-                lock.unlock();
-            }
+    private static long toRealWaitNs(long fakeNs) {
+        if (fakeNs <= 0L || foreground.get() && advanceFrozen(fakeNs)) {
+            return 0L;
+        }
+        return root.frame.state().settings.accelerator().unscale(fakeNs);
+    }
+
+    /**
+     * Сдвинуть остановленный общий таймер и виртуальный счетчик наносекунд вперед. Несколько потоков
+     * могут сдвигать таймер одновременно, все сдвиги складываются.
+     *
+     * @param deltaNs размер сдвига
+     * @return {@code false}, если общий таймер не остановлен
+     */
+    private static boolean advanceFrozen(long deltaNs) {
+        return publish("sleep", root, (current, advancedNs) -> {
+            Settings settings = current.effectiveSettings(advancedNs);
+            return settings.frozen() ? State.of(settings.withShift(settings.shiftNs() + deltaNs)) : null;
+        }, deltaNs);
+    }
+
+    private static Instant toInstant(long epochNs) {
+        return Instant.ofEpochSecond(epochNs / NANOS_PER_SEC, epochNs % NANOS_PER_SEC);
+    }
+
+    /**
+     * Опережение последнего значения, выданного функцией уникальности, относительно таймера
+     * без этой функции. Показывает, насколько значения таймера ушли в будущее из-за частых обращений.
+     *
+     * @return опережение в наносекундах или 0, если функция уникальности не установлена или опережения нет
+     */
+    public static long getUniqueifierLeadNs() {
+        Scope owner = currentScope();
+        UniqueOperator operator = owner.frame.state().uniqueOperator();
+        long lastNs = operator == null ? Long.MIN_VALUE : operator.lastResultNs();
+        if (lastNs == Long.MIN_VALUE) {
+            return 0L;
+        }
+        return Math.max(0L, lastNs - owner.peekEpochNs());
+    }
+
+    /**
+     * Значение таймера без функции уникальности. Вызов не влияет на значения, которые выдает таймер.
+     *
+     * @return количество наносекунд после Unix Epoch
+     */
+    public static long currentEpochNs() {
+        return currentScope().peekEpochNs();
+    }
+
+    /**
+     * Проверить, остановлен ли таймер
+     *
+     * @return {@code true}, если таймер остановлен
+     */
+    public static boolean isFrozen() {
+        return currentState().settings.frozen();
+    }
+
+    /**
+     * Настройки таймера, действующие в текущем потоке
+     *
+     * @return снимок настроек
+     */
+    public static Parameters getParameters() {
+        Scope owner = currentScope();
+        Frame current = owner.frame;
+        return parametersOf(current.state(), owner.advancedNs(current));
+    }
+
+    private static Parameters parametersOf(State current, long advancedNs) {
+        State base = current.unwrap();
+        Settings settings = current.effectiveSettings(advancedNs);
+        Accelerator accelerator = settings.accelerator();
+        return new Parameters(settings.frozen(), base instanceof Replayed, base instanceof Programmed,
+                base instanceof Slewing, current instanceof Monotonic, settings.shiftNs(), settings.tickNs(),
+                accelerator.numerator(), accelerator.denominator(), settings.uniqueifier());
+    }
+
+    /**
+     * Разница между таймером и системным временем
+     *
+     * @return разница в наносекундах, положительная, если таймер опережает системное время
+     */
+    public static long getOffsetNs() {
+        return currentScope().peekEpochNs() - VM.getNanoTimeAdjustment(0L);
+    }
+
+    /**
+     * Включить подсчет обращений к таймеру и конфликтов функций уникальности. Счетчики разнесены по ячейкам,
+     * поэтому подсчет почти не замедляет параллельные обращения.
+     */
+    public static void enableStatistics() {
+        enableProbe(PROBE_COUNTERS);
+    }
+
+    /**
+     * Включить выдачу событий JFR {@code ru.seregaizsbera.faketime.ClockRead} для обращений к таймеру.
+     * Чтобы не перегружать запись, событие выдается не чаще одного раза за указанный период по системному счетчику.
+     * События выдаются, только если они включены в настройках записи JFR.
+     *
+     * @param periodNs минимальный интервал между событиями в наносекундах, 0 или отрицательное значение отключает события
+     */
+    public static void setClockReadSampling(long periodNs) {
+        ClockReadEvent.periodNs = Math.max(0L, periodNs);
+        if (periodNs > 0L) {
+            enableProbe(PROBE_EVENTS);
+        } else {
+            disableProbe(PROBE_EVENTS);
+        }
+    }
+
+    /**
+     * Начать сбор статистики мест, из которых читается таймер. Ранее собранная статистика удаляется.
+     *
+     * @param sampleRate в выборку попадает в среднем одно обращение из {@code sampleRate}
+     */
+    public static void startCallSiteProfiling(int sampleRate) {
+        CallSiteProfiler.start(sampleRate);
+        enableProbe(PROBE_PROFILER);
+    }
+
+    /**
+     * Остановить сбор статистики мест обращения к таймеру. Собранная статистика сохраняется.
+     */
+    public static void stopCallSiteProfiling() {
+        disableProbe(PROBE_PROFILER);
+    }
+
+    /**
+     * Статистика мест обращения к таймеру
+     *
+     * @return места в порядке убывания количества обращений
+     */
+    public static List<CallSite> getCallSites() {
+        return CallSiteProfiler.snapshot();
+    }
+
+    /**
+     * Частота выборки профилировщика
+     *
+     * @return в выборку попадает в среднем одно обращение из возвращаемого количества
+     */
+    public static int getCallSiteSampleRate() {
+        return CallSiteProfiler.getSampleRate();
+    }
+
+    /**
+     * Начать запись всех выданных значений таймера вместе с идентификатором потока и системным временем
+     * в кольцевой буфер в файле, отображенном в память. Формат файла описан в {@link TimestampRecorder}.
+     * Если запись уже идет, она завершается.
+     *
+     * @param file файл, существующий файл перезаписывается
+     * @param chunkSize размер блока, который поток занимает целиком, в байтах
+     * @param chunkCount количество блоков
+     */
+    public static void startRecording(Path file, int chunkSize, int chunkCount) {
+        try {
+            TimestampRecorder.start(file, chunkSize, chunkCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        enableProbe(PROBE_RECORDER);
+    }
+
+    /**
+     * Завершить запись значений таймера и сбросить буфер в файл
+     */
+    public static void stopRecording() {
+        disableProbe(PROBE_RECORDER);
+        try {
+            TimestampRecorder.stop();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void enableProbe(int probe) {
+        PROBES.getAndBitwiseOr(probe);
+    }
+
+    private static void disableProbe(int probe) {
+        PROBES.getAndBitwiseAnd(~probe);
+    }
+
+    /**
+     * Значения счетчиков, которые ведутся после вызова {@link #enableStatistics()}
+     *
+     * @return снимок счетчиков
+     */
+    public static Statistics getStatistics() {
+        return new Statistics(Counters.currentTimeMillisCalls.sum(), Counters.currentInstantCalls.sum(),
+                Counters.uniqueifierCollisions.sum(), Counters.casRetries.sum(), Counters.lockContentions.sum());
+    }
+
+    /**
+     * Снимок настроек таймера
+     *
+     * @param frozen таймер остановлен
+     * @param replay таймер выдает значения из записанной последовательности
+     * @param programmed таймер изменяется по программе, установленной {@link #program(List)}
+     * @param slewing таймер плавно переходит к сдвигу, установленному {@link #slew(long, long)}
+     * @param monotonic таймер не идет назад, см. {@link #setMonotonic(boolean)}
+     * @param shiftNs сдвиг времени относительно системного таймера, для остановленного таймера - его значение
+     * @param tickNs размер такта
+     * @param acceleratorNumerator числитель множителя скорости
+     * @param acceleratorDenominator знаменатель множителя скорости
+     * @param uniqueifier функция обеспечения уникальности
+     */
+    public record Parameters(boolean frozen, boolean replay, boolean programmed, boolean slewing, boolean monotonic, long shiftNs, long tickNs, long acceleratorNumerator,
+                             long acceleratorDenominator, Uniqueifier uniqueifier) {
+        /**
+         * Те же настройки с другим сдвигом
+         */
+        Parameters withShiftNs(long shiftNs) {
+            return new Parameters(frozen, replay, programmed, slewing, monotonic, shiftNs, tickNs, acceleratorNumerator,
+                    acceleratorDenominator, uniqueifier);
+        }
+    }
+
+    /**
+     * Изменение таймера, см. {@link #setListener(Consumer)}
+     *
+     * @param operation имя метода, изменившего таймер
+     * @param scoped изменение действует только в области потока, см. {@link #openScope()}
+     * @param previous настройки до изменения
+     * @param next настройки после изменения
+     * @param jumpNs разница значений таймера после и до изменения в момент изменения, в наносекундах
+     */
+    public record Transition(String operation, boolean scoped, Parameters previous, Parameters next, long jumpNs) {
+    }
+
+    /**
+     * Снимок счетчиков
+     *
+     * @param currentTimeMillisCalls количество вызовов {@link #currentTimeMillis()}
+     * @param currentInstantCalls количество вызовов {@link #currentInstant()}
+     * @param uniqueifierCollisions количество значений, которые функция уникальности увеличила из-за совпадения
+     * @param casRetries количество повторов атомарной операции в {@link Uniqueifier#UNIQUE_ATOMIC}
+     * @param lockContentions количество ожиданий блокировки в {@link Uniqueifier#UNIQUE_LOCK}
+     */
+    public record Statistics(long currentTimeMillisCalls, long currentInstantCalls, long uniqueifierCollisions,
+                             long casRetries, long lockContentions) {
+    }
+
+    /**
+     * Изменение настроек таймера для {@link #update(Update)}. Настройки, которые не заданы, сохраняют текущие значения.
+     * Как и в отдельных методах, установка времени методами {@link #fix()}, {@link #fixAt(long)}, {@link #shift(long)}
+     * и {@link #resetAt(long)} сбрасывает такт, скорость и функцию уникальности, а изменение такта сбрасывает
+     * функцию уникальности, если она не задана в том же изменении. Значения проверяются при заполнении,
+     * а применяются в порядке: время, такт, скорость, функция уникальности. Пока таймер работает по программе
+     * {@link #program(List)} или воспроизводит значения {@link #replay(Path, boolean, ReplayPolicy)}, эти настройки
+     * не действуют, поэтому изменение без установки времени завершается исключением {@link IllegalStateException}.
+     */
+    public static final class Update {
+        private static final int KEEP = 0;
+        private static final int FIX = 1;
+        private static final int FIX_AT = 2;
+        private static final int SHIFT = 3;
+        private static final int RESET_AT = 4;
+        private int mode = KEEP;
+        private long valueNs = 0L;
+        /**
+         * Такт, 0 - не изменяется
+         */
+        private long tickNs = 0L;
+        /**
+         * Числитель и знаменатель скорости, 0 - не изменяется
+         */
+        private long numerator = 0L;
+        private long denominator = 0L;
+        /**
+         * Функция уникальности, {@code null} - не изменяется
+         */
+        private Uniqueifier uniqueifier = null;
+
+        /**
+         * Создает изменение, которое сохраняет все настройки
+         */
+        public Update() {}
+
+        /**
+         * Остановить таймер на текущем системном времени
+         *
+         * @return этот объект
+         */
+        public Update fix() {
+            return time(FIX, 0L);
+        }
+
+        /**
+         * Установить время на указанный момент и остановить таймер
+         *
+         * @param epochNs количество наносекунд после Unix Epoch
+         * @return этот объект
+         */
+        public Update fixAt(long epochNs) {
+            return time(FIX_AT, epochNs);
+        }
+
+        /**
+         * Сдвинуть время относительно системного таймера
+         *
+         * @param shiftNs размер сдвига в наносекундах
+         * @return этот объект
+         */
+        public Update shift(long shiftNs) {
+            return time(SHIFT, shiftNs);
+        }
+
+        /**
+         * Сдвинуть время на указанный момент
+         *
+         * @param epochNs количество наносекунд после Unix Epoch
+         * @return этот объект
+         */
+        public Update resetAt(long epochNs) {
+            return time(RESET_AT, epochNs);
+        }
+
+        private Update time(int mode, long valueNs) {
+            this.mode = mode;
+            this.valueNs = valueNs;
+            return this;
+        }
+
+        /**
+         * Установить такт. Отрицательный такт заменяется абсолютным значением, нулевой - одной наносекундой.
+         *
+         * @param tickNs размер такта в наносекундах
+         * @return этот объект
+         */
+        public Update tick(long tickNs) {
+            this.tickNs = tickNs == 0L || tickNs == Long.MIN_VALUE ? 1L : Math.abs(tickNs);
+            return this;
+        }
+
+        /**
+         * Изменить скорость таймера
+         *
+         * @param numerator числитель, больше нуля
+         * @param denominator знаменатель, больше нуля
+         * @return этот объект
+         */
+        public Update accelerator(long numerator, long denominator) {
+            if (numerator <= 0L || denominator <= 0L) {
+                throw new IllegalArgumentException("Скорость таймера должна быть положительной (upac)");
+            }
+            long gcd = computeGCD(numerator, denominator);
+            this.numerator = numerator / gcd;
+            this.denominator = denominator / gcd;
+            return this;
+        }
+
+        /**
+         * Установить функцию уникальности
+         *
+         * @param uniqueifier функция уникальности
+         * @return этот объект
+         */
+        public Update uniqueifier(Uniqueifier uniqueifier) {
+            if (uniqueifier == null) {
+                throw new IllegalArgumentException("Не задана функция уникальности (upun)");
+            }
+            this.uniqueifier = uniqueifier;
+            return this;
+        }
+
+        /**
+         * Вычислить новое состояние из текущего
+         *
+         * @param current текущее состояние
+         * @param advancedNs продвижение таймера, не учтенное в текущем состоянии
+         * @return новое состояние или {@code null}, если настройки не изменились
+         */
+        State apply(State current, long advancedNs) {
+            Settings previous = current.effectiveSettings(advancedNs);
+            Settings settings = previous;
+            long realNs = VM.getNanoTimeAdjustment(0L);
+            switch (mode) {
+                case FIX -> settings = new Settings(true, realNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+                case FIX_AT -> settings = new Settings(true, valueNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+                case SHIFT -> settings = new Settings(false, valueNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+                case RESET_AT -> settings = new Settings(false, valueNs - realNs, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+                default -> {
+                    // время не изменяется
+                }
+            }
+            if (tickNs != 0L && tickNs != settings.tickNs()) {
+                settings = settings.withTick(tickNs);
+            }
+            if (numerator != 0L) {
+                Accelerator accelerator = numerator == denominator ? Accelerator.UNIT
+                        : new Accelerator(settings.frozen() ? 0L : realNs, numerator, denominator);
+                settings = settings.withAccelerator(accelerator);
+            }
+            if (uniqueifier != null) {
+                settings = settings.withUniqueifier(uniqueifier);
+            }
+            if (mode == KEEP && settings.equals(previous)) {
+                return null;
+            }
+            State base = current.unwrap();
+            if (mode == KEEP && (base instanceof Programmed || base instanceof Replayed)) {
+                throw new IllegalStateException("Такт, скорость и функцию уникальности нельзя изменить, пока таймер работает "
+                        + "по программе или воспроизводит записанные значения (uppr)");
+            }
+            return State.of(settings);
+        }
+    }
+
+    /**
+     * Отрезок программы таймера
+     *
+     * @param offsetNs начало отрезка по системному таймеру в наносекундах после установки программы
+     * @param jump {@code true} - в начале отрезка таймер переводится на значение {@code epochNs},
+     *             {@code false} - таймер продолжает идти от значения, достигнутого в конце предыдущего отрезка
+     * @param epochNs значение таймера в начале отрезка в наносекундах после Unix Epoch, если {@code jump}
+     * @param numerator числитель скорости таймера, 0 - таймер остановлен
+     * @param denominator знаменатель скорости таймера
+     */
+    public record Segment(long offsetNs, boolean jump, long epochNs, long numerator, long denominator) {
+    }
+
+    /**
+     * Место обращения к таймеру
+     *
+     * @param site класс, метод и строка исходного кода
+     * @param samples количество обращений, попавших в выборку
+     * @param threads количество различных потоков, обращавшихся из этого места, не больше 64
+     */
+    public record CallSite(String site, long samples, int threads) {
+    }
+
+    /**
+     * Счетчики для {@link #getStatistics()}. Пока подсчет не включен, счетчики не изменяются.
+     */
+    private static final class Counters {
+        private static final LongAdder currentTimeMillisCalls = new LongAdder();
+        private static final LongAdder currentInstantCalls = new LongAdder();
+        private static final LongAdder uniqueifierCollisions = new LongAdder();
+        private static final LongAdder casRetries = new LongAdder();
+        private static final LongAdder lockContentions = new LongAdder();
+
+        private Counters() {}
+
+        static boolean enabled() {
+            return (probes & PROBE_COUNTERS) != 0;
+        }
+    }
+
+    /**
+     * Событие JFR, выдаваемое при каждом изменении настроек таймера. Стек вызова показывает, кто изменил таймер.
+     */
+    @Name("ru.seregaizsbera.faketime.StateChange")
+    @Label("Изменение таймера")
+    @Category("FakeTime")
+    @StackTrace(true)
+    static final class StateChangeEvent extends Event {
+        @Label("Операция")
+        String operation;
+        @Label("Только в области потока")
+        boolean scoped;
+        @Label("Был остановлен")
+        boolean oldFrozen;
+        @Label("Прежний сдвиг, нс")
+        long oldShiftNs;
+        @Label("Прежний такт, нс")
+        long oldTickNs;
+        @Label("Прежняя скорость")
+        String oldAccelerator;
+        @Label("Прежняя функция уникальности")
+        String oldUniqueifier;
+        @Label("Остановлен")
+        boolean frozen;
+        @Label("Сдвиг, нс")
+        long shiftNs;
+        @Label("Такт, нс")
+        long tickNs;
+        @Label("Скорость")
+        String accelerator;
+        @Label("Функция уникальности")
+        String uniqueifier;
+
+        static void emit(String operation, boolean scoped, Settings previous, Settings settings) {
+            var event = new StateChangeEvent();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            event.operation = operation;
+            event.scoped = scoped;
+            event.oldFrozen = previous.frozen();
+            event.oldShiftNs = previous.shiftNs();
+            event.oldTickNs = previous.tickNs();
+            event.oldAccelerator = previous.accelerator().numerator() + "/" + previous.accelerator().denominator();
+            event.oldUniqueifier = previous.uniqueifier().name();
+            event.frozen = settings.frozen();
+            event.shiftNs = settings.shiftNs();
+            event.tickNs = settings.tickNs();
+            event.accelerator = settings.accelerator().numerator() + "/" + settings.accelerator().denominator();
+            event.uniqueifier = settings.uniqueifier().name();
+            event.commit();
+        }
+    }
+
+    /**
+     * Выборочное событие JFR об обращении к таймеру, см. {@link #setClockReadSampling(long)}.
+     * Стек вызова показывает, откуда было обращение.
+     */
+    @Name("ru.seregaizsbera.faketime.ClockRead")
+    @Label("Обращение к таймеру")
+    @Category("FakeTime")
+    @StackTrace(true)
+    static final class ClockReadEvent extends Event {
+        private static final AtomicLong nextSampleNs = new AtomicLong();
+        private static volatile long periodNs = 0L;
+        @Label("Метод")
+        String method;
+        @Label("Значение таймера")
+        @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+        long value;
+
+        /**
+         * Выдать событие, если с предыдущего события по системному времени прошло не меньше периода.
+         * Из нескольких потоков, обратившихся одновременно, событие выдает только один.
+         */
+        static void sample(boolean instant, long epochNs) {
+            long period = periodNs;
+            if (period <= 0L) {
+                return;
+            }
+            long nowNs = VM.getNanoTimeAdjustment(0L);
+            long next = nextSampleNs.get();
+            if (nowNs - next < 0L || !nextSampleNs.compareAndSet(next, nowNs + period)) {
+                return;
+            }
+            var event = new ClockReadEvent();
+            if (event.shouldCommit()) {
+                event.method = instant ? "Clock.currentInstant" : "System.currentTimeMillis";
+                event.value = Math.floorDiv(epochNs, NANOS_PER_MS);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Запомнить состояние таймера, действующее в текущем потоке, чтобы потом вернуть его методом
+     * {@link Snapshot#close()}. Состояние неизменяемо, поэтому сохраняется и восстанавливается ссылка на него
+     * без копирования и пересчета, вместе с функцией уникальности и ее последним значением и с режимами области
+     * {@link #setMonotonic(boolean)} и {@link #setCoarse(long)}. Состояние и режимы возвращаются только в ту
+     * область, в которой они сохранены, остальные области и общий таймер не затрагиваются. Продвижение таймера
+     * методом {@link #advance(long)} хранится отдельно от состояния, поэтому сохраняется вместе с ним,
+     * и продвижения после сохранения тоже отменяются.
+     *
+     * @return сохраненное состояние
+     */
+    public static Snapshot push() {
+        Scope owner = currentScope();
+        Frame current = owner.frame;
+        return new Snapshot(owner, current.state(), owner.advancedNs(current), current.modes());
+    }
+
+    /**
+     * Вернуть сохраненное состояние и режимы в область, в которой они были сохранены. Если эта область
+     * уже закрыта, ничего не делает.
+     */
+    private static void pop(Snapshot snapshot) {
+        publish("pop", snapshot.owner, modes -> snapshot.modes, (current, advancedNs) -> snapshot.state.advanced(snapshot.advancedNs), 0L);
+    }
+
+    /**
+     * Состояние таймера, сохраненное методом {@link #push()}
+     */
+    public static final class Snapshot implements AutoCloseable {
+        private static final VarHandle CLOSED;
+        static {
+            try {
+                CLOSED = MethodHandles.lookup().findVarHandle(Snapshot.class, "closed", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+        private final Scope owner;
+        private final State state;
+        /**
+         * Продвижение таймера, не учтенное в сохраненном состоянии
+         */
+        private final long advancedNs;
+        private final Modes modes;
+        private volatile boolean closed = false;
+
+        private Snapshot(Scope owner, State state, long advancedNs, Modes modes) {
+            this.owner = owner;
+            this.state = state;
+            this.advancedNs = advancedNs;
+            this.modes = modes;
+        }
+
+        /**
+         * Вернуть таймеру сохраненное состояние. Повторный вызов ничего не делает.
+         */
+        @Override
+        public void close() {
+            if (CLOSED.compareAndSet(this, false, true)) {
+                pop(this);
+            }
+        }
+    }
+
+    /**
+     * Открыть в текущем потоке область действия собственного таймера. В момент открытия таймер области
+     * совпадает с таймером, действующим в потоке. Все изменения таймера внутри области затрагивают только ее.
+     * Область наследуется потоками, созданными внутри нее, кроме потоков {@link java.util.concurrent.ForkJoinPool}
+     * и {@link java.util.concurrent.ThreadPoolExecutor}, которые пул создает по требованию. Виртуальный счетчик {@link #nanoTime()} и ожидания
+     * {@link #sleep(long)}, {@link #parkNanos(long)}, {@link #parkUntil(long)} отсчитываются по общему таймеру.
+     *
+     * @return открытая область
+     */
+    public static Scope openScope() {
+        Scope owner = currentScope();
+        Frame current = owner.frame;
+        // у области свои ячейка грубого таймера и наибольшее выданное значение, иначе перевод таймера
+        // вперед в области задержал бы общий таймер, а ячейка перестала бы обновляться после изменения общего
+        State parent = current.state();
+        State previous = parent instanceof Monotonic guarded
+                ? new Monotonic(guarded.base, new AtomicLong(guarded.highWaterNs.get()))
+                : parent;
+        State state = guard(previous, parent, current.modes());
+        Scope result = new Scope(scope.get(), new Frame(state, null, 0L, current.modes()), owner.advancedNs(current));
+        if (Coarse.of(state) != null) {
+            CoarseTicker.register(result);
+        }
+        openScopes.incrementAndGet();
+        scope.set(result);
+        return result;
+    }
+
+    /**
+     * Область действия собственного таймера. После закрытия области потоки, которые в ней остались,
+     * используют общий таймер.
+     */
+    public static final class Scope implements AutoCloseable {
+        private static final VarHandle FRAME;
+        private static final VarHandle ADVANCED;
+        private static final VarHandle CLOSED;
+        static {
+            try {
+                FRAME = MethodHandles.lookup().findVarHandle(Scope.class, "frame", Frame.class);
+                ADVANCED = MethodHandles.lookup().findVarHandle(Scope.class, "advancedNs", long.class);
+                CLOSED = MethodHandles.lookup().findVarHandle(Scope.class, "closed", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+        private final Scope parent;
+        @SuppressWarnings("java:S3077")
+        private volatile Frame frame;
+        /**
+         * Сумма продвижений таймера области методом {@link TimeInterceptor#advance(long)}. Только растет,
+         * продвижение, не учтенное в состоянии, равно разнице с {@link Frame#advancedNs()}.
+         */
+        private volatile long advancedNs;
+        private volatile boolean closed = false;
+
+        private Scope(Scope parent, Frame frame, long advancedNs) {
+            this.parent = parent;
+            this.frame = frame;
+            this.advancedNs = advancedNs;
+        }
+
+        /**
+         * Продвижение таймера, не учтенное в состоянии. Состояние должно быть прочитано раньше счетчика
+         * продвижений, иначе продвижение может оказаться учтено дважды.
+         */
+        private long advancedNs(Frame current) {
+            return advancedNs - current.advancedNs();
+        }
+
+        private long getEpochMs() {
+            Frame current = frame;
+            return current.state().getEpochMs(advancedNs(current));
+        }
+
+        private Instant getInstant() {
+            Frame current = frame;
+            return current.state().getInstant(advancedNs(current));
+        }
+
+        private long peekEpochNs() {
+            Frame current = frame;
+            return current.state().peekEpochNs(advancedNs(current));
+        }
+
+        /**
+         * Область, таймер которой действует вместо этой: сама область, пока она открыта, иначе {@link #root},
+         * как для потоков, находившихся в закрытой области
+         */
+        private Scope effective() {
+            return closed ? root : this;
+        }
+
+        /**
+         * Значение таймера области в наносекундах после Unix Epoch, как {@link TimeInterceptor#currentEpochNs()}
+         * в потоке, находящемся в области. Если область закрыта, значение общего таймера.
+         */
+        public long currentEpochNs() {
+            return effective().peekEpochNs();
+        }
+
+        /**
+         * Продвинуть таймер области, как {@link TimeInterceptor#advance(long)} в потоке, находящемся в области.
+         * Если область закрыта, продвигается общий таймер.
+         *
+         * @param deltaNs интервал в наносекундах
+         */
+        public void advance(long deltaNs) {
+            if (deltaNs > 0L) {
+                ADVANCED.getAndAdd(effective(), deltaNs);
+            }
+        }
+
+        /**
+         * Перевести текущий поток в эту область
+         *
+         * @return область, в которой поток находился раньше, для передачи в {@link #restore(Scope)}
+         */
+        public Scope attach() {
+            Scope previous = scope.get();
+            scope.set(this);
+            return previous;
+        }
+
+        /**
+         * Вернуть текущий поток в область, в которой он находился до вызова {@link #attach()}
+         *
+         * @param previous результат {@link #attach()}
+         */
+        public static void restore(Scope previous) {
+            if (previous == null) {
+                scope.remove();
+            } else {
+                scope.set(previous);
+            }
+        }
+
+        /**
+         * Закрыть область. Если текущий поток находится в ней, он возвращается в охватывающую область.
+         * Повторный вызов и закрытие {@link #root} ничего не делают.
+         */
+        @Override
+        public void close() {
+            if (this == root) {
+                return;
+            }
+            if (CLOSED.compareAndSet(this, false, true)) {
+                openScopes.decrementAndGet();
+            }
+            if (scope.get() == this) {
+                restore(parent);
+            }
+        }
+    }
+
+    /**
+     * Состояние таймера вместе с виртуальным счетчиком наносекунд, который ему соответствует.
+     * Оба значения заменяются одной атомарной операцией, см. {@link #publish(String, Scope, Change, long)}.
+     *
+     * @param state состояние таймера
+     * @param nanoClock виртуальный счетчик для {@link #nanoTime()}, только у {@link #root};
+     *                  {@code null}, пока перехват {@link System#nanoTime()} не включен
+     * @param advancedNs сумма продвижений таймера области, учтенная в состоянии
+     * @param modes режимы области, которые применяются к каждому ее новому состоянию
+     */
+    private record Frame(State state, NanoClock nanoClock, long advancedNs, Modes modes) {
+    }
+
+    /**
+     * Режимы таймера области, которые не сбрасываются его изменениями, кроме {@link #reset()}.
+     * Хранятся вместе с состоянием, поэтому у каждой области свои.
+     *
+     * @param monotonic значения таймера не уменьшаются, см. {@link #setMonotonic(boolean)}
+     * @param coarseNs период обновления грубого таймера, 0 - грубый таймер не используется, см. {@link #setCoarse(long)}
+     */
+    private record Modes(boolean monotonic, long coarseNs) {
+        static final Modes DEFAULT = new Modes(false, 0L);
+    }
+
+    /**
+     * Вычисление нового состояния таймера из текущего. Может вызываться несколько раз,
+     * если состояние одновременно изменяют другие потоки.
+     */
+    @FunctionalInterface
+    private interface Change {
+        /**
+         * @param current текущее состояние
+         * @param advancedNs продвижение таймера, не учтенное в текущем состоянии. Если новое состояние
+         *                   должно его сохранить, оно учитывается в новом состоянии, см. {@link State#advanced(long)}.
+         * @return новое состояние или {@code null}, если состояние не изменяется
+         */
+        State apply(State current, long advancedNs);
+    }
+
+    /**
+     * Скорость таймера. Пересчет длительностей выполняется через {@link Ratio} без деления и без переполнения.
+     */
+    private static final class Accelerator {
+        private static final Accelerator UNIT = new Accelerator(0L, 1L, 1L);
+        private final long zeroPointEpochNs;
+        private final long numerator;
+        private final long denominator;
+        private final Ratio forward;
+        private final Ratio inverse;
+
+        Accelerator(long zeroPointEpochNs, long numerator, long denominator) {
+            this.zeroPointEpochNs = zeroPointEpochNs;
+            this.numerator = numerator;
+            this.denominator = denominator;
+            this.forward = new Ratio(numerator, denominator);
+            this.inverse = new Ratio(denominator, numerator);
+        }
+
+        long zeroPointEpochNs() {
+            return zeroPointEpochNs;
+        }
+
+        long numerator() {
+            return numerator;
+        }
+
+        long denominator() {
+            return denominator;
+        }
+
+        boolean isUnit() {
+            return numerator == denominator;
+        }
+
+        /**
+         * Пересчитать длительность в соответствии со скоростью таймера
+         */
+        long scale(long durationNs) {
+            return forward.apply(durationNs);
+        }
+
+        /**
+         * Длительность, за которую таймер с этой скоростью продвинется на указанный интервал
+         */
+        long unscale(long durationNs) {
+            return inverse.apply(durationNs);
+        }
+    }
+
+    /**
+     * Виртуальный счетчик наносекунд. При каждой смене состояния таймера счетчик пересчитывается
+     * от текущего значения, поэтому остается непрерывным.
+     *
+     * @param realAnchorNs значение системного счетчика в момент смены состояния
+     * @param virtualAnchorNs значение виртуального счетчика в момент смены состояния
+     * @param settings настройки таймера, определяющие скорость счетчика
+     */
+    private record NanoClock(long realAnchorNs, long virtualAnchorNs, Settings settings) {
+        private static final Perf perf = Perf.getPerf();
+        private static final long frequency = perf.highResFrequency();
+        /**
+         * Разница между началом отсчета {@link System#nanoTime()} и счетчика {@link Perf}. Вычисляется
+         * при инициализации класса, то есть до подмены {@link System#nanoTime()}.
+         */
+        private static final long origin = System.nanoTime() - counterNs();
+
+        /**
+         * Системный монотонный счетчик. {@link System#nanoTime()} нельзя использовать, поскольку он подменяется.
+         */
+        static long realNanoTime() {
+            return counterNs() + origin;
+        }
+
+        private static long counterNs() {
+            long counter = perf.highResCounter();
+            if (frequency == NANOS_PER_SEC) {
+                return counter;
+            }
+            return counter / frequency * NANOS_PER_SEC + counter % frequency * NANOS_PER_SEC / frequency;
+        }
+
+        long nanoTime() {
+            return at(realNanoTime());
+        }
+
+        private long at(long realNs) {
+            if (settings.frozen()) {
+                return virtualAnchorNs;
+            }
+            return virtualAnchorNs + settings.accelerator().scale(realNs - realAnchorNs);
+        }
+
+        NanoClock rebase(Settings next, long deltaNs) {
+            long realNs = realNanoTime();
+            return new NanoClock(realNs, at(realNs) + deltaNs, next);
+        }
+    }
+
+    /**
+     * Настройки системного таймера, из которых строится {@link State}
+     *
+     * @param frozen таймер остановлен
+     * @param shiftNs сдвиг времени относительно счетчика, для остановленного таймера - его значение
+     * @param tickNs размер такта
+     * @param accelerator изменение скорости таймера
+     * @param uniqueifier функция, применяемая к результату после всех вычислений
+     */
+    private record Settings(boolean frozen, long shiftNs, long tickNs, Accelerator accelerator, Uniqueifier uniqueifier) {
+        private static final Settings DEFAULT = new Settings(false, 0L, 1L, Accelerator.UNIT, Uniqueifier.NOTHING);
+
+        Settings withAccelerator(Accelerator accelerator) {
+            return new Settings(frozen, shiftNs, tickNs, accelerator, uniqueifier);
+        }
+
+        Settings withShift(long shiftNs) {
+            return new Settings(frozen, shiftNs, tickNs, accelerator, uniqueifier);
+        }
+
+        Settings withTick(long tickNs) {
+            return new Settings(frozen, shiftNs, tickNs, accelerator, Uniqueifier.NOTHING);
+        }
+
+        Settings withUniqueifier(Uniqueifier uniqueifier) {
+            return new Settings(frozen, shiftNs, tickNs, accelerator, uniqueifier);
+        }
+    }
+
+    /**
+     * Состояние системного таймера. Собрано в отдельный неизменяемый объект для
+     * обеспечения параллельного доступа. Для каждого сочетания настроек выбирается
+     * отдельная реализация, которая вычисляет только то, что нужно в этом режиме.
+     * Продвижение таймера методом {@link TimeInterceptor#advance(long)} хранится в области, а не в состоянии,
+     * поэтому методы чтения получают продвижение, еще не учтенное в состоянии, параметром {@code advancedNs}.
+     * Благодаря этому одно состояние может действовать в нескольких областях и снимках.
+     */
+    private abstract static sealed class State permits Frozen, Shifted, Ticked, MaskTicked, Accelerated, Unique, Replayed, Programmed, Slewing, Coarse, Monotonic {
+        final Settings settings;
+
+        State(Settings settings) {
+            this.settings = settings;
+        }
+
+        /**
+         * Настройки с учетом продвижения таймера
+         */
+        Settings effectiveSettings(long advancedNs) {
+            return advancedNs == 0L ? settings : settings.withShift(settings.shiftNs() + advancedNs);
+        }
+
+        /**
+         * Состояние, в котором учтено продвижение таймера. Защита от перевода таймера назад и грубый таймер
+         * не сохраняются.
+         */
+        State advanced(long advancedNs) {
+            return advancedNs == 0L ? this : of(effectiveSettings(advancedNs));
+        }
+
+        abstract long getEpochNs(long advancedNs);
+
+        long getEpochMs(long advancedNs) {
+            return getEpochNs(advancedNs) / NANOS_PER_MS;
+        }
+
+        Instant getInstant(long advancedNs) {
+            return toInstant(getEpochNs(advancedNs));
+        }
+
+        /**
+         * Значение таймера без применения функции уникальности
+         */
+        long peekEpochNs(long advancedNs) {
+            return getEpochNs(advancedNs);
+        }
+
+        /**
+         * Состояние без защиты от перевода таймера назад и без грубого таймера
+         */
+        State unwrap() {
+            return this;
+        }
+
+        /**
+         * Функция уникальности этого состояния
+         *
+         * @return функция уникальности или {@code null}, если значения выдаются без нее
+         */
+        UniqueOperator uniqueOperator() {
+            return null;
+        }
+
+        static State of(Settings settings) {
+            long tickNs = settings.tickNs();
+            State result;
+            if (settings.frozen()) {
+                result = new Frozen(settings);
+            } else if (!settings.accelerator().isUnit()) {
+                result = new Accelerated(settings);
+            } else if (tickNs == 1L) {
+                result = new Shifted(settings);
+            } else if (Long.bitCount(tickNs) == 1) {
+                result = new MaskTicked(settings);
+            } else {
+                result = new Ticked(settings);
+            }
+            if (settings.uniqueifier() != Uniqueifier.NOTHING) {
+                result = new Unique(settings, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Остановленный таймер. Значение и объект {@link Instant} вычисляются один раз.
+     */
+    private static final class Frozen extends State {
+        private final long shiftNs;
+        private final long tickNs;
+        private final long epochNs;
+        private final long epochMs;
+        private final Instant instant;
+
+        Frozen(Settings settings) {
+            super(settings);
+            this.shiftNs = settings.shiftNs();
+            this.tickNs = settings.tickNs();
+            this.epochNs = shiftNs - (shiftNs % tickNs);
+            this.epochMs = epochNs / NANOS_PER_MS;
+            this.instant = toInstant(epochNs);
+        }
+
+        /**
+         * Значение таймера после {@link TimeInterceptor#advance(long)}. Вычисляется при обращении,
+         * чтобы продвижение таймера не создавало объектов.
+         */
+        private long advancedEpochNs(long advancedNs) {
+            long result = shiftNs + advancedNs;
+            return result - (result % tickNs);
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return advancedNs == 0L ? epochNs : advancedEpochNs(advancedNs);
+        }
+
+        @Override
+        long getEpochMs(long advancedNs) {
+            return advancedNs == 0L ? epochMs : advancedEpochNs(advancedNs) / NANOS_PER_MS;
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            return advancedNs == 0L ? instant : toInstant(advancedEpochNs(advancedNs));
+        }
+    }
+
+    /**
+     * Таймер, сдвинутый относительно системного, без такта
+     */
+    private static final class Shifted extends State {
+        private final long shiftNs;
+
+        Shifted(Settings settings) {
+            super(settings);
+            this.shiftNs = settings.shiftNs();
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return VM.getNanoTimeAdjustment(0L) + shiftNs + advancedNs;
+        }
+    }
+
+    /**
+     * Таймер, сдвинутый относительно системного, с произвольным тактом
+     */
+    private static final class Ticked extends State {
+        private final long shiftNs;
+        private final long tickNs;
+        private final TickInstantCache instants;
+
+        Ticked(Settings settings) {
+            super(settings);
+            this.shiftNs = settings.shiftNs();
+            this.tickNs = settings.tickNs();
+            this.instants = TickInstantCache.forTick(tickNs);
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            long epochNs = VM.getNanoTimeAdjustment(0L) + shiftNs + advancedNs;
+            return epochNs - (epochNs % tickNs);
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            return instants == null ? super.getInstant(advancedNs) : instants.get(getEpochNs(advancedNs));
+        }
+    }
+
+    /**
+     * Таймер, сдвинутый относительно системного, с тактом, равным степени двойки.
+     * Остаток от деления на такт вычисляется маской. Для отрицательных значений
+     * результат совпадает с {@link Ticked}, то есть округление выполняется к нулю.
+     */
+    private static final class MaskTicked extends State {
+        private final long shiftNs;
+        private final long tickNs;
+        private final long mask;
+        private final TickInstantCache instants;
+
+        MaskTicked(Settings settings) {
+            super(settings);
+            this.shiftNs = settings.shiftNs();
+            this.tickNs = settings.tickNs();
+            this.mask = tickNs - 1L;
+            this.instants = TickInstantCache.forTick(tickNs);
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            long epochNs = VM.getNanoTimeAdjustment(0L) + shiftNs + advancedNs;
+            long remainder = epochNs & mask;
+            if (epochNs < 0L && remainder != 0L) {
+                remainder -= tickNs;
+            }
+            return epochNs - remainder;
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            return instants == null ? super.getInstant(advancedNs) : instants.get(getEpochNs(advancedNs));
+        }
+    }
+
+    /**
+     * Таймер с измененной скоростью
+     */
+    private static final class Accelerated extends State {
+        private final Accelerator accelerator;
+        private final long zeroPointEpochNs;
+        private final long shiftNs;
+        /**
+         * Сумма начала отсчета и сдвига, если она помещается в {@code long}
+         */
+        private final long offsetNs;
+        private final boolean offsetExact;
+        private final long tickNs;
+        private final TickInstantCache instants;
+
+        Accelerated(Settings settings) {
+            super(settings);
+            this.accelerator = settings.accelerator();
+            this.zeroPointEpochNs = accelerator.zeroPointEpochNs();
+            this.shiftNs = settings.shiftNs();
+            this.offsetNs = zeroPointEpochNs + shiftNs;
+            this.offsetExact = ((zeroPointEpochNs ^ offsetNs) & (shiftNs ^ offsetNs)) >= 0L;
+            this.tickNs = settings.tickNs();
+            this.instants = TickInstantCache.forTick(tickNs);
+        }
+
+        private long scaledNs(long advancedNs) {
+            return accelerator.scale(VM.getNanoTimeAdjustment(0L) - zeroPointEpochNs) + advancedNs;
+        }
+
+        /**
+         * Значение таймера или {@link Long#MIN_VALUE}, если оно не помещается в {@code long}
+         */
+        private long epochNs(long scaledNs) {
+            long epochNs = scaledNs + offsetNs;
+            if (!offsetExact || ((scaledNs ^ epochNs) & (offsetNs ^ epochNs)) < 0L || epochNs == Long.MIN_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            return tickNs == 1L ? epochNs : epochNs - (epochNs % tickNs);
+        }
+
+        /**
+         * Значение таймера, если оно не помещается в {@code long}. Секунды и наносекунды
+         * складываются отдельно, поэтому результат точен во всем диапазоне {@link Instant}.
+         */
+        private Instant wideInstant(long scaledNs) {
+            long seconds = Math.floorDiv(scaledNs, NANOS_PER_SEC) + Math.floorDiv(zeroPointEpochNs, NANOS_PER_SEC)
+                    + Math.floorDiv(shiftNs, NANOS_PER_SEC);
+            long nanos = Math.floorMod(scaledNs, NANOS_PER_SEC) + Math.floorMod(zeroPointEpochNs, NANOS_PER_SEC)
+                    + Math.floorMod(shiftNs, NANOS_PER_SEC);
+            seconds += nanos / NANOS_PER_SEC;
+            nanos %= NANOS_PER_SEC;
+            if (tickNs != 1L) {
+                nanos -= truncatedRemainder(seconds, nanos);
+            }
+            return Instant.ofEpochSecond(seconds, nanos);
+        }
+
+        /**
+         * Остаток от деления {@code seconds * 10^9 + nanos} на такт со знаком делимого, как у оператора {@code %}.
+         * Произведение вычисляется в 128 битах, поэтому переполнения нет.
+         */
+        private long truncatedRemainder(long seconds, long nanos) {
+            long secondsRem = Math.floorMod(seconds, tickNs);
+            long scaleRem = NANOS_PER_SEC % tickNs;
+            long remainder = Ratio.remainder128(Math.multiplyHigh(secondsRem, scaleRem), secondsRem * scaleRem, tickNs);
+            long nanosRem = nanos % tickNs;
+            remainder = remainder >= tickNs - nanosRem ? remainder - (tickNs - nanosRem) : remainder + nanosRem;
+            return seconds < 0L && remainder != 0L ? remainder - tickNs : remainder;
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            long scaledNs = scaledNs(advancedNs);
+            long epochNs = epochNs(scaledNs);
+            if (epochNs == Long.MIN_VALUE) {
+                return wideInstant(scaledNs).isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            return epochNs;
+        }
+
+        @Override
+        long getEpochMs(long advancedNs) {
+            long scaledNs = scaledNs(advancedNs);
+            long epochNs = epochNs(scaledNs);
+            if (epochNs == Long.MIN_VALUE) {
+                Instant instant = wideInstant(scaledNs);
+                long seconds = instant.getEpochSecond();
+                if (seconds >= Long.MAX_VALUE / MILLIS_PER_SEC || seconds <= Long.MIN_VALUE / MILLIS_PER_SEC) {
+                    return seconds < 0L ? Long.MIN_VALUE : Long.MAX_VALUE;
+                }
+                long millis = seconds * MILLIS_PER_SEC + instant.getNano() / NANOS_PER_MS;
+                return seconds < 0L && instant.getNano() % NANOS_PER_MS != 0L ? millis + 1L : millis;
+            }
+            return epochNs / NANOS_PER_MS;
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            long scaledNs = scaledNs(advancedNs);
+            long epochNs = epochNs(scaledNs);
+            if (epochNs == Long.MIN_VALUE) {
+                return wideInstant(scaledNs);
+            }
+            return instants == null ? toInstant(epochNs) : instants.get(epochNs);
+        }
+    }
+
+    /**
+     * Таймер, значения которого дополнительно обрабатываются функцией, обеспечивающей уникальность
+     */
+    private static final class Unique extends State {
+        private final State base;
+        private final UniqueOperator operator;
+        private final long tickNs;
+
+        Unique(Settings settings, State base) {
+            this(settings, base, settings.uniqueifier().operator.fresh());
+        }
+
+        private Unique(Settings settings, State base, UniqueOperator operator) {
+            super(settings);
+            this.base = base;
+            this.operator = operator;
+            this.tickNs = settings.tickNs();
+        }
+
+        /**
+         * Продвижение только переводит таймер вперед, поэтому нумерация продолжается
+         */
+        @Override
+        State advanced(long advancedNs) {
+            return advancedNs == 0L ? this : new Unique(effectiveSettings(advancedNs), base.advanced(advancedNs), operator);
+        }
+
+        @Override
+        UniqueOperator uniqueOperator() {
+            return operator;
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return operator.apply(base, advancedNs, tickNs);
+        }
+
+        @Override
+        long peekEpochNs(long advancedNs) {
+            return base.getEpochNs(advancedNs);
+        }
+    }
+
+    /**
+     * Таймер, выдающий значения из записанной последовательности. Настройки сдвига, такта и скорости не применяются.
+     */
+    private static final class Replayed extends State {
+        private final ReplaySequence sequence;
+        private final boolean perThread;
+        private final ReplayPolicy policy;
+        /**
+         * Продвижение таймера, учтенное в состоянии
+         */
+        private final long offsetNs;
+
+        Replayed(ReplaySequence sequence, boolean perThread, ReplayPolicy policy, long offsetNs) {
+            super(Settings.DEFAULT.withShift(offsetNs));
+            this.sequence = sequence;
+            this.perThread = perThread;
+            this.policy = policy;
+            this.offsetNs = offsetNs;
+        }
+
+        @Override
+        State advanced(long advancedNs) {
+            return advancedNs == 0L ? this : new Replayed(sequence, perThread, policy, offsetNs + advancedNs);
+        }
+
+        private ReplaySequence.Section section() {
+            return perThread ? sequence.forThread(Thread.currentThread().getId()) : sequence.global();
+        }
+
+        /**
+         * Поведение после окончания последовательности для текущего потока. Исключение получают только потоки,
+         * которые воспроизводят свою последовательность, а при общей последовательности - только потоки
+         * приложения. Остальные потоки, в том числе служебные потоки JDK, после окончания последовательности
+         * получают последнее значение, иначе исключение возникло бы в коде, который его не ожидает.
+         */
+        private ReplayPolicy policy(ReplaySequence.Section section) {
+            if (policy != ReplayPolicy.FAIL) {
+                return policy;
+            }
+            boolean own = perThread ? section != sequence.global() : foreground.get();
+            return own ? ReplayPolicy.FAIL : ReplayPolicy.FREEZE;
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            ReplaySequence.Section section = section();
+            return section.next(policy(section)) + offsetNs + advancedNs;
+        }
+
+        @Override
+        long getEpochMs(long advancedNs) {
+            return Math.floorDiv(getEpochNs(advancedNs), NANOS_PER_MS);
+        }
+
+        @Override
+        long peekEpochNs(long advancedNs) {
+            return section().peek(policy) + offsetNs + advancedNs;
+        }
+    }
+
+    /**
+     * Таймер, изменяющийся по программе. Начала отрезков по системному таймеру и значения таймера в начале
+     * каждого отрезка вычисляются при установке программы, поэтому обращение к таймеру сводится
+     * к двоичному поиску отрезка и пересчету времени, прошедшего с его начала.
+     */
+    private static final class Programmed extends State {
+        private final long[] startRealNs;
+        private final long[] startEpochNs;
+        /**
+         * Скорость на отрезке, {@code null} - таймер остановлен
+         */
+        private final Ratio[] ratios;
+        /**
+         * Продвижение таймера, учтенное в состоянии
+         */
+        private final long offsetNs;
+
+        Programmed(long realNs, long epochNs, List<Segment> segments) {
+            super(Settings.DEFAULT);
+            this.offsetNs = 0L;
+            int first = segments.isEmpty() || segments.get(0).offsetNs() > 0L ? 1 : 0;
+            int count = segments.size() + first;
+            this.startRealNs = new long[count];
+            this.startEpochNs = new long[count];
+            this.ratios = new Ratio[count];
+            if (first == 1) {
+                startRealNs[0] = realNs;
+                startEpochNs[0] = epochNs;
+                ratios[0] = new Ratio(1L, 1L);
+            }
+            for (int i = first; i < count; i++) {
+                Segment segment = segments.get(i - first);
+                startRealNs[i] = realNs + segment.offsetNs();
+                if (segment.jump()) {
+                    startEpochNs[i] = segment.epochNs();
+                } else if (i == 0) {
+                    startEpochNs[i] = epochNs;
+                } else {
+                    startEpochNs[i] = valueAt(i - 1, startRealNs[i]);
+                }
+                ratios[i] = segment.numerator() == 0L ? null : new Ratio(segment.numerator(), segment.denominator());
+            }
+        }
+
+        private Programmed(Programmed source, long offsetNs) {
+            super(Settings.DEFAULT.withShift(offsetNs));
+            this.startRealNs = source.startRealNs;
+            this.startEpochNs = source.startEpochNs;
+            this.ratios = source.ratios;
+            this.offsetNs = offsetNs;
+        }
+
+        @Override
+        State advanced(long advancedNs) {
+            return advancedNs == 0L ? this : new Programmed(this, offsetNs + advancedNs);
+        }
+
+        private long valueAt(int index, long realNs) {
+            Ratio ratio = ratios[index];
+            return ratio == null ? startEpochNs[index] : startEpochNs[index] + ratio.apply(realNs - startRealNs[index]);
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            long realNs = VM.getNanoTimeAdjustment(0L);
+            int index = Arrays.binarySearch(startRealNs, realNs);
+            if (index < 0) {
+                index = Math.max(0, -index - 2);
+            }
+            return valueAt(index, realNs) + offsetNs + advancedNs;
+        }
+    }
+
+    /**
+     * Плавный переход к новому сдвигу. До окончания перехода таймер идет с постоянной скоростью
+     * от значения, которое он имел в начале перехода, после окончания совпадает с {@link Shifted}.
+     */
+    private static final class Slewing extends State {
+        private final long shiftNs;
+        private final long startRealNs;
+        private final long startEpochNs;
+        private final long lengthNs;
+        /**
+         * Доля разницы, на которую таймер расходится с системным за единицу времени перехода
+         */
+        private final Ratio slope;
+        private final boolean backwards;
+        private final long deltaNs;
+
+        Slewing(Settings settings, long startRealNs, long startEpochNs, long lengthNs, long deltaNs) {
+            super(settings);
+            this.shiftNs = settings.shiftNs();
+            this.startRealNs = startRealNs;
+            this.startEpochNs = startEpochNs;
+            this.lengthNs = lengthNs;
+            this.deltaNs = deltaNs;
+            this.backwards = deltaNs < 0L;
+            this.slope = new Ratio(deltaNs == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(deltaNs), lengthNs);
+        }
+
+        /**
+         * Продвижение сдвигает и начало, и конец перехода, поэтому скорость перехода не изменяется
+         */
+        @Override
+        State advanced(long advancedNs) {
+            return advancedNs == 0L ? this : new Slewing(effectiveSettings(advancedNs), startRealNs, startEpochNs + advancedNs,
+                    lengthNs, deltaNs);
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return rampNs() + advancedNs;
+        }
+
+        private long rampNs() {
+            long realNs = VM.getNanoTimeAdjustment(0L);
+            long elapsedNs = realNs - startRealNs;
+            if (elapsedNs >= lengthNs) {
+                return realNs + shiftNs;
+            }
+            if (elapsedNs <= 0L) {
+                return startEpochNs + elapsedNs;
+            }
+            long correctionNs = slope.apply(elapsedNs);
+            return startEpochNs + elapsedNs + (backwards ? -correctionNs : correctionNs);
+        }
+    }
+
+    /**
+     * Грубый таймер, см. {@link #setCoarse(long)}. Значение и объект {@link Instant} хранятся в одной ячейке,
+     * которую обновляет общий фоновый поток {@link CoarseTicker}, пока это состояние установлено.
+     */
+    private static final class Coarse extends State {
+        private final State base;
+        private final long periodNs;
+        @SuppressWarnings("java:S3077")
+        private volatile Sample sample;
+
+        Coarse(State base, long periodNs) {
+            super(base.settings);
+            this.base = base;
+            this.periodNs = periodNs;
+            refresh();
+        }
+
+        @Override
+        UniqueOperator uniqueOperator() {
+            return base.uniqueOperator();
+        }
+
+        /**
+         * Обновить ячейку. Продвижение таймера в ячейку не входит, а прибавляется при чтении.
+         */
+        private void refresh() {
+            long epochNs = base.peekEpochNs(0L);
+            sample = new Sample(epochNs, epochNs / NANOS_PER_MS, toInstant(epochNs));
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return sample.epochNs() + advancedNs;
+        }
+
+        @Override
+        long getEpochMs(long advancedNs) {
+            Sample current = sample;
+            return advancedNs == 0L ? current.epochMs() : (current.epochNs() + advancedNs) / NANOS_PER_MS;
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            Sample current = sample;
+            return advancedNs == 0L ? current.instant() : toInstant(current.epochNs() + advancedNs);
+        }
+
+        @Override
+        State unwrap() {
+            return base;
+        }
+
+        @Override
+        State advanced(long advancedNs) {
+            return base.advanced(advancedNs);
+        }
+
+        /**
+         * Грубый таймер, установленный в состоянии, с защитой от перевода таймера назад или без нее
+         *
+         * @return грубый таймер или {@code null}, если состояние не использует грубый таймер
+         */
+        static Coarse of(State state) {
+            State base = state instanceof Monotonic guarded ? guarded.base : state;
+            return base instanceof Coarse coarse ? coarse : null;
+        }
+
+        /**
+         * Значение таймера, вычисленное потоком обновления
+         */
+        private record Sample(long epochNs, long epochMs, Instant instant) {
+        }
+    }
+
+    /**
+     * Поток обновления грубых таймеров. Один поток обновляет грубые таймеры всех областей, в которых они
+     * установлены, поэтому установка нового состояния не создает потоков. Поток запускается при первой установке
+     * грубого таймера и работает до конца работы JVM, а пока грубых таймеров нет, ждет без пробуждений.
+     */
+    private static final class CoarseTicker {
+        /**
+         * Области, в которых может быть установлен грубый таймер. Область, в которой его больше нет,
+         * удаляется при очередном обновлении.
+         */
+        private static final Set<Scope> scopes = ConcurrentHashMap.newKeySet();
+        private static final AtomicBoolean started = new AtomicBoolean();
+        private static final Thread thread = new Thread(null, CoarseTicker::run, "faketime-coarse", 0L, false);
+
+        private CoarseTicker() {}
+
+        /**
+         * Начать обновлять грубый таймер области. Вызывается после установки состояния.
+         */
+        static void register(Scope owner) {
+            scopes.add(owner);
+            if (started.compareAndSet(false, true)) {
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                Parking.unpark(thread);
+            }
+        }
+
+        private static void run() {
+            while (true) {
+                long periodNs = Long.MAX_VALUE;
+                for (Scope owner : scopes) {
+                    Coarse coarse = Coarse.of(owner.frame.state());
+                    if (coarse == null || owner.closed) {
+                        scopes.remove(owner);
+                        // состояние могло быть заменено грубым таймером до удаления области
+                        coarse = owner.closed ? null : Coarse.of(owner.frame.state());
+                        if (coarse == null) {
+                            continue;
+                        }
+                        scopes.add(owner);
+                    }
+                    coarse.refresh();
+                    periodNs = Math.min(periodNs, coarse.periodNs);
+                }
+                Parking.park(periodNs == Long.MAX_VALUE ? 0L : periodNs);
+            }
+        }
+    }
+
+    /**
+     * Защита от перевода таймера назад, см. {@link #setMonotonic(boolean)}. Наибольшее выданное значение
+     * общее для всех потоков и переходит от состояния к состоянию.
+     */
+    private static final class Monotonic extends State {
+        private final State base;
+        private final AtomicLong highWaterNs;
+
+        Monotonic(State base, AtomicLong highWaterNs) {
+            super(base.settings);
+            this.base = base;
+            this.highWaterNs = highWaterNs;
+        }
+
+        /**
+         * Выдать значение, если оно не меньше выданных ранее, иначе наибольшее выданное значение
+         */
+        private long admit(long epochNs) {
+            while (true) {
+                long lastNs = highWaterNs.get();
+                if (epochNs <= lastNs) {
+                    return lastNs;
+                }
+                if (highWaterNs.compareAndSet(lastNs, epochNs)) {
+                    return epochNs;
+                }
+            }
+        }
+
+        @Override
+        long getEpochNs(long advancedNs) {
+            return admit(base.getEpochNs(advancedNs));
+        }
+
+        @Override
+        Instant getInstant(long advancedNs) {
+            Instant instant = base.getInstant(advancedNs);
+            long seconds = instant.getEpochSecond();
+            if (seconds >= Long.MAX_VALUE / NANOS_PER_SEC || seconds <= Long.MIN_VALUE / NANOS_PER_SEC) {
+                admit(seconds < 0L ? Long.MIN_VALUE : Long.MAX_VALUE);
+                return instant;
+            }
+            long epochNs = seconds * NANOS_PER_SEC + instant.getNano();
+            long resultNs = admit(epochNs);
+            return resultNs == epochNs ? instant : toInstant(resultNs);
+        }
+
+        @Override
+        long peekEpochNs(long advancedNs) {
+            return Math.max(base.peekEpochNs(advancedNs), highWaterNs.get());
+        }
+
+        @Override
+        State unwrap() {
+            return base.unwrap();
+        }
+
+        @Override
+        State advanced(long advancedNs) {
+            return base.advanced(advancedNs);
+        }
+
+        @Override
+        UniqueOperator uniqueOperator() {
+            return base.uniqueOperator();
+        }
+    }
+
+    /**
+     * Ожидание потока без обращения к {@link java.util.concurrent.locks.LockSupport}, методы которого подменяются
+     */
+    private static final class Parking {
+        private static final Unsafe unsafe = Unsafe.getUnsafe();
+        private static final long parkBlockerOffset = unsafe.objectFieldOffset(Thread.class, "parkBlocker");
+
+        static void park(long realNs) {
+            unsafe.park(false, realNs);
+        }
+
+        static void unpark(Thread thread) {
+            unsafe.unpark(thread);
+        }
+
+        static void parkWithBlocker(Object blocker, long realNs) {
+            Thread thread = Thread.currentThread();
+            unsafe.putReferenceOpaque(thread, parkBlockerOffset, blocker);
+            try {
+                unsafe.park(false, realNs);
+            } finally {
+                unsafe.putReferenceOpaque(thread, parkBlockerOffset, null);
+            }
+        }
+    }
+
+    /**
+     * Объект {@link Instant} для последнего такта. Пока такт не сменился, все обращения
+     * получают один и тот же объект. Поле изменяется без синхронизации: {@link TickInstant}
+     * неизменяем, поэтому в худшем случае объект будет создан повторно.
+     */
+    private static final class TickInstantCache {
+        private TickInstant last;
+
+        /**
+         * Создать кэш, если такт достаточно крупный
+         *
+         * @param tickNs размер такта
+         * @return кэш или {@code null}, если такт мельче {@link #COARSE_TICK_NS}
+         */
+        static TickInstantCache forTick(long tickNs) {
+            return tickNs >= COARSE_TICK_NS ? new TickInstantCache() : null;
+        }
+
+        Instant get(long epochNs) {
+            TickInstant cached = last;
+            if (cached != null && cached.epochNs() == epochNs) {
+                return cached.instant();
+            }
+            Instant instant = toInstant(epochNs);
+            last = new TickInstant(epochNs, instant);
+            return instant;
+        }
+    }
+
+    private record TickInstant(long epochNs, Instant instant) {
+    }
+
+    /**
+     * Поведение таймера, когда записанная последовательность значений закончилась
+     */
+    public enum ReplayPolicy {
+        /**
+         * Таймер останавливается на последнем значении последовательности
+         */
+        FREEZE,
+        /**
+         * Таймер идет от последнего значения последовательности со скоростью системного таймера
+         */
+        CONTINUE,
+        /**
+         * Обращение к таймеру завершается исключением {@link IllegalStateException}. Это касается только потоков,
+         * которые воспроизводят свою последовательность, а при общей последовательности - только потоков,
+         * которые не являются фоновыми потоками или потоками пулов. Остальные потоки получают последнее значение,
+         * как при {@link #FREEZE}.
+         */
+        FAIL
+    }
+
+    /**
+     * Варианты реализации функции, обеспечивающей уникальность
+     * значений, возвращаемых при каждом обращении к таймеру
+     */
+    public enum Uniqueifier {
+        /**
+         * Значения таймера выдаются без изменений
+         */
+        NOTHING((base, advancedNs, tickNs) -> base.getEpochNs(advancedNs)),
+        /**
+         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+         * Синхронизация параллельного доступа обеспечивается значением атомарной переменной.
+         */
+        UNIQUE_ATOMIC(AtomicUniqueifier.instance),
+        /**
+         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+         * Синхронизация параллельного доступа обеспечивается блокировкой.
+         */
+        UNIQUE_LOCK(LockUniqueifier.instance),
+        /**
+         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+         * Значения разбиты на полосы по младшим битам количества тактов, каждый поток работает
+         * в своей полосе, поэтому общей переменной для синхронизации нет. Значения уникальны
+         * глобально и возрастают в пределах потока, но могут опережать таймер на число полос, умноженное на такт.
+         */
+        UNIQUE_STRIPED(StripedUniqueifier.instance),
+        /**
+         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+         * Повторяющиеся значения нумеруются внутри такта, поэтому значения таймера могут быть не кратны такту,
+         * но опережают его не более чем на один такт или на микросекунду, если такт меньше. Когда номера
+         * заканчиваются, обращение к таймеру ожидает начала следующего такта. При переводе таймера назад
+         * нумерация начинается заново.
+         */
+        UNIQUE_BOUNDED_SPIN(BoundedUniqueifier.spin),
+        /**
+         * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+         * Повторяющиеся значения нумеруются внутри такта, поэтому значения таймера могут быть не кратны такту.
+         * Когда номера внутри такта заканчиваются, используются номера следующего такта,
+         * а когда заканчиваются и они, обращение к таймеру ожидает. Опережение не превышает двух тактов
+         * или микросекунды, если два такта меньше. При переводе таймера назад нумерация начинается заново.
+         */
+        UNIQUE_BOUNDED_BORROW(BoundedUniqueifier.borrow),
+        /**
+         * Значения таймера модифицируются в большую сторону, чтобы строго возрастать в пределах одного потока.
+         * Разные потоки могут получить одинаковые значения. Последнее значение хранится в самом потоке,
+         * поэтому синхронизация не нужна.
+         */
+        UNIQUE_PER_THREAD(ThreadLocalUniqueifier.instance);
+
+        private final UniqueOperator operator;
+
+        Uniqueifier(UniqueOperator operator) {
+            this.operator = operator;
+        }
+    }
+
+    /**
+     * Функция, обеспечивающая уникальность значений таймера
+     */
+    @FunctionalInterface
+    private interface UniqueOperator {
+        /**
+         * Получить очередное значение таймера
+         *
+         * @param base таймер без функции уникальности
+         * @param advancedNs продвижение таймера, не учтенное в {@code base}
+         * @param tickNs размер такта
+         * @return уникальное значение
+         */
+        long apply(State base, long advancedNs, long tickNs);
+
+        /**
+         * Последнее выданное значение
+         *
+         * @return последнее выданное значение или {@link Long#MIN_VALUE}, если оно неизвестно
+         */
+        default long lastResultNs() {
+            return Long.MIN_VALUE;
+        }
+
+        /**
+         * Экземпляр для нового состояния таймера. Функции, последние значения которых общие для всей JVM,
+         * возвращают сами себя.
+         */
+        default UniqueOperator fresh() {
+            return this;
+        }
+    }
+
+    /**
+     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_ATOMIC}.
+     */
+    private static final class AtomicUniqueifier implements UniqueOperator {
+        private static final AtomicUniqueifier instance = new AtomicUniqueifier();
+        private final AtomicLong lastResultNs = new AtomicLong(Long.MIN_VALUE);
+        @Override
+        public long apply(State base, long advancedNs, long tickNs) {
+            long baseNs = base.getEpochNs(advancedNs);
+            long epochNs = baseNs;
+            while (true) {
+                long lastNs = lastResultNs.get();
+                if (epochNs <= lastNs) {
+                    epochNs = lastNs + tickNs;
+                }
+                if (lastResultNs.compareAndSet(lastNs, epochNs)) {
+                    if (Counters.enabled() && epochNs != baseNs) {
+                        Counters.uniqueifierCollisions.increment();
+                    }
+                    return epochNs;
+                }
+                if (Counters.enabled()) {
+                    Counters.casRetries.increment();
+                }
+            }
+        }
+
+        @Override
+        public long lastResultNs() {
+            return lastResultNs.get();
+        }
+    }
+
+    /**
+     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_LOCK}.
+     */
+    private static final class LockUniqueifier implements UniqueOperator {
+        private static final LockUniqueifier instance = new LockUniqueifier();
+        private final Lock lock = new ReentrantLock();
+        private long lastResultNs = Long.MIN_VALUE;
+        @Override
+        public long apply(State base, long advancedNs, long tickNs) {
+            long epochNs = base.getEpochNs(advancedNs);
+            if (!lock.tryLock()) {
+                if (Counters.enabled()) {
+                    Counters.lockContentions.increment();
+                }
+                lock.lock();
+            }
+            try {
+                long lastNs = lastResultNs;
+                if (epochNs <= lastNs) {
+                    epochNs = lastNs + tickNs;
+                    if (Counters.enabled()) {
+                        Counters.uniqueifierCollisions.increment();
+                    }
+                }
+                lastResultNs = epochNs;
+                return epochNs;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long lastResultNs() {
+            lock.lock();
+            try {
+                return lastResultNs;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_STRIPED}.
+     * Значение таймера в тактах делится на полосы по младшим битам: полоса с номером {@code lane}
+     * выдает только такие количества тактов, младшие биты которых равны {@code lane}.
+     * Полоса выбирается по идентификатору потока. У каждой полосы своя атомарная переменная,
+     * переменные разнесены по разным кэш-линиям.
+     */
+    private static final class StripedUniqueifier implements UniqueOperator {
+        private static final int MAX_LANES = 64;
+        private static final int PADDING = 16;
+        private static final StripedUniqueifier instance = new StripedUniqueifier();
+        private final int lanes;
+        private final long laneMask;
+        private final AtomicLongArray lastResultNs;
+
+        private StripedUniqueifier() {
+            int processors = Runtime.getRuntime().availableProcessors();
+            int count = 1;
+            while (count < processors && count < MAX_LANES) {
+                count <<= 1;
+            }
+            lanes = count;
+            laneMask = count - 1L;
+            lastResultNs = new AtomicLongArray(count * PADDING);
+            for (int i = 0; i < count; i++) {
+                lastResultNs.set(i * PADDING, Long.MIN_VALUE);
+            }
+        }
+
+        @Override
+        public long apply(State base, long advancedNs, long tickNs) {
+            long epochNs = base.getEpochNs(advancedNs);
+            long lane = Thread.currentThread().getId() & laneMask;
+            int index = (int) lane * PADDING;
+            long ticks = align(Math.floorDiv(epochNs, tickNs), lane);
+            while (true) {
+                long lastNs = lastResultNs.get(index);
+                long resultTicks = ticks;
+                if (lastNs != Long.MIN_VALUE) {
+                    long lastTicks = Math.floorDiv(lastNs, tickNs);
+                    if (resultTicks <= lastTicks) {
+                        resultTicks = align(lastTicks + 1L, lane);
+                    }
+                }
+                long resultNs = resultTicks * tickNs;
+                if (lastResultNs.compareAndSet(index, lastNs, resultNs)) {
+                    return resultNs;
+                }
+            }
+        }
+
+        /**
+         * Наименьшее количество тактов, не меньшее {@code ticks}, которое принадлежит полосе {@code lane}
+         */
+        private long align(long ticks, long lane) {
+            long result = (ticks & ~laneMask) | lane;
+            return result < ticks ? result + lanes : result;
+        }
+
+        @Override
+        public long lastResultNs() {
+            long result = Long.MIN_VALUE;
+            for (int i = 0; i < lanes; i++) {
+                result = Math.max(result, lastResultNs.get(i * PADDING));
+            }
+            return result;
+        }
+
+        /**
+         * Полосы заводятся заново для каждого состояния, поэтому значения, выданные при другом такте
+         * или до сброса, не влияют на новые
+         */
+        @Override
+        public UniqueOperator fresh() {
+            return new StripedUniqueifier();
+        }
+    }
+
+    /**
+     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_PER_THREAD}.
+     * Последнее значение хранится в изменяемом объекте, привязанном к потоку, чтобы при каждом
+     * обращении не заменять значение {@link ThreadLocal}. Для виртуальных потоков значение хранится
+     * в виртуальном потоке, а не в потоке-носителе. Опережение таймера в целом по JVM неизвестно.
+     */
+    private static final class ThreadLocalUniqueifier implements UniqueOperator {
+        private static final ThreadLocalUniqueifier instance = new ThreadLocalUniqueifier();
+        private final ThreadLocal<long[]> lastResultNs = ThreadLocal.withInitial(() -> new long[] {Long.MIN_VALUE});
+
+        @Override
+        public long apply(State base, long advancedNs, long tickNs) {
+            long epochNs = base.getEpochNs(advancedNs);
+            long[] last = lastResultNs.get();
+            long lastNs = last[0];
+            if (epochNs <= lastNs) {
+                epochNs = lastNs + tickNs;
+            }
+            last[0] = epochNs;
+            return epochNs;
+        }
+    }
+
+    /**
+     * Реализация механизма обеспечения уникальности для {@link Uniqueifier#UNIQUE_BOUNDED_SPIN}
+     * и {@link Uniqueifier#UNIQUE_BOUNDED_BORROW}. Повторяющиеся значения нумеруются наносекундами
+     * внутри такта, опережение таймера ограничено заданным количеством тактов, но не меньше {@value #MIN_LEAD_NS} нс,
+     * чтобы при такте в одну наносекунду номера не заканчивались при каждом обращении. Если номера закончились,
+     * обращение ждет, пока таймер не продвинется. Если таймер отстает от последнего выданного значения больше,
+     * чем на допустимое опережение, значит, его перевели назад: нумерация начинается заново без ожидания.
+     * Остановленный таймер не продвигается, поэтому для него ограничение не действует.
+     * Последнее значение хранится отдельно для каждого состояния таймера.
+     */
+    private static final class BoundedUniqueifier implements UniqueOperator {
+        private static final long MIN_LEAD_NS = 1_000L;
+        private static final BoundedUniqueifier spin = new BoundedUniqueifier(1L);
+        private static final BoundedUniqueifier borrow = new BoundedUniqueifier(2L);
+        private final AtomicLong lastResultNs = new AtomicLong(Long.MIN_VALUE);
+        private final long maxTicksAhead;
+
+        private BoundedUniqueifier(long maxTicksAhead) {
+            this.maxTicksAhead = maxTicksAhead;
+        }
+
+        @Override
+        public long apply(State base, long advancedNs, long tickNs) {
+            long maxLeadNs = tickNs > Long.MAX_VALUE / maxTicksAhead ? Long.MAX_VALUE : Math.max(MIN_LEAD_NS, tickNs * maxTicksAhead);
+            boolean frozen = base instanceof Frozen;
+            boolean fresh = false;
+            long epochNs = base.getEpochNs(advancedNs);
+            while (true) {
+                long lastNs = lastResultNs.get();
+                long resultNs;
+                if (lastNs < epochNs) {
+                    resultNs = epochNs;
+                } else if (frozen || lastNs - epochNs + 1L < maxLeadNs) {
+                    resultNs = lastNs + 1L;
+                } else if (lastNs - epochNs + 1L > maxLeadNs) {
+                    // Значение таймера могло устареть, пока другой поток выдавал следующие
+                    if (!fresh) {
+                        epochNs = base.getEpochNs(advancedNs);
+                        fresh = true;
+                        continue;
+                    }
+                    resultNs = epochNs;
+                } else {
+                    Thread.onSpinWait();
+                    epochNs = base.getEpochNs(advancedNs);
+                    continue;
+                }
+                if (lastResultNs.compareAndSet(lastNs, resultNs)) {
+                    return resultNs;
+                }
+                fresh = false;
+            }
+        }
+
+        @Override
+        public long lastResultNs() {
+            return lastResultNs.get();
+        }
+
+        @Override
+        public UniqueOperator fresh() {
+            return new BoundedUniqueifier(maxTicksAhead);
         }
     }
 }
@@ -0,0 +1,248 @@
+package ru.seregaizsbera.faketime.internal;
+
+import jdk.internal.misc.VM;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Запись всех выданных значений таймера в кольцевой буфер в файле, отображенном в память.
+ * Файл разбит на блоки, каждый поток захватывает блок целиком и пишет только в него.
+ * Когда блок заканчивается, поток захватывает следующий. Блоки используются по кругу, поэтому
+ * при переполнении самые старые блоки перезаписываются. Запись не создает объектов в куче.
+ * <p>
+ * На время каждой записи поток помечает свой блок занятым атомарной операцией и только после этого
+ * проверяет, что блок не был перезахвачен другим потоком после переполнения кольца. Занятый блок
+ * не захватывается, поэтому записи разных потоков не перемешиваются, даже если поток, который
+ * надолго остановился посреди записи, обогнали на целый круг. Пометка касается только блока
+ * самого потока, поэтому потоки не конкурируют за общие данные. Пометив блок, поток проверяет,
+ * что запись не остановлена, а {@link #stop()} перед сбросом файла ждет, пока все пометки не будут сняты,
+ * поэтому после остановки в файл ничего не пишется.
+ * <p>
+ * Формат файла, все числа little-endian:
+ * <pre>
+ * заголовок, 64 байта:
+ *   0  long  сигнатура {@value #MAGIC}
+ *   8  int   размер блока
+ *   12 int   количество блоков
+ * блок:
+ *   0  long  порядковый номер захвата блока + 1, 0 - блок не использовался
+ *   8  long  идентификатор потока
+ *   16 long  начальное значение таймера, нс после Unix Epoch
+ *   24 long  начальное системное время, нс после Unix Epoch
+ *   32 int   количество занятых байтов после заголовка блока
+ *   36 int   1 - в блок идет запись, 0 - блок свободен
+ *   40       записи
+ * запись:
+ *   varint   zigzag(значение таймера - предыдущее значение таймера)
+ *   varint   zigzag(системное время - предыдущее системное время) * 2 + 1, если значение выдано
+ *            {@link TimeInterceptor#currentInstant()}, или + 0, если {@link TimeInterceptor#currentTimeMillis()}
+ * </pre>
+ * Для первой записи блока предыдущими считаются начальные значения из заголовка блока. Чтобы признак метода
+ * поместился в младший бит, разница системного времени ограничивается {@value #MAX_REAL_DELTA_NS} нс
+ * (около 146 лет) по модулю. При большем скачке системного времени записывается ограниченная разница,
+ * и следующие разницы отсчитываются от записанного значения, поэтому скачок не искажает остальные записи блока.
+ */
+final class TimestampRecorder {
+    static final long MAGIC = 0x3130304345525446L;
+    static final int HEADER_SIZE = 64;
+    static final int CHUNK_HEADER_SIZE = 40;
+    private static final int MAX_RECORD_SIZE = 20;
+    private static final int BUSY_OFFSET = 36;
+    /**
+     * Наибольшая по модулю разница системного времени, после zigzag-кодирования которой остается свободным старший бит
+     */
+    static final long MAX_REAL_DELTA_NS = (1L << 62) - 1L;
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    @SuppressWarnings("java:S3077")
+    private static volatile TimestampRecorder active = null;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final AtomicLong claims = new AtomicLong();
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+    private TimestampRecorder(FileChannel channel, MappedByteBuffer buffer, int chunkSize, int chunkCount) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Начать запись в новый файл. Если запись уже идет, она завершается.
+     *
+     * @param file файл, существующий файл перезаписывается
+     * @param chunkSize размер блока в байтах, кратный четырем
+     * @param chunkCount количество блоков
+     */
+    static synchronized void start(Path file, int chunkSize, int chunkCount) throws IOException {
+        if (chunkSize < CHUNK_HEADER_SIZE + MAX_RECORD_SIZE || chunkSize % Integer.BYTES != 0 || chunkCount <= 0
+                || (long) chunkSize * chunkCount > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("Недопустимый размер буфера записи (rcsz)");
+        }
+        stop();
+        int size = HEADER_SIZE + chunkSize * chunkCount;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(8, chunkSize);
+            buffer.putInt(12, chunkCount);
+            buffer.putLong(0, MAGIC);
+            active = new TimestampRecorder(channel, buffer, chunkSize, chunkCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Завершить запись и сбросить буфер в файл
+     */
+    static synchronized void stop() throws IOException {
+        TimestampRecorder recorder = active;
+        if (recorder == null) {
+            return;
+        }
+        active = null;
+        recorder.awaitWriters();
+        recorder.buffer.force();
+        recorder.channel.close();
+    }
+
+    /**
+     * Дождаться, пока потоки, которые пометили свои блоки до остановки записи, не закончат запись
+     */
+    private void awaitWriters() {
+        for (int i = 0; i < chunkCount; i++) {
+            int chunk = HEADER_SIZE + i * chunkSize;
+            while ((int) INTS.getVolatile(buffer, chunk + BUSY_OFFSET) != 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Записать выданное значение таймера
+     */
+    static void record(boolean instant, long epochNs) {
+        TimestampRecorder recorder = active;
+        if (recorder != null) {
+            recorder.append(instant, epochNs);
+        }
+    }
+
+    private void append(boolean instant, long epochNs) {
+        long realNs = VM.getNanoTimeAdjustment(0L);
+        Cursor cursor = cursors.get();
+        long claim = -1L;
+        if (cursor.position + MAX_RECORD_SIZE > cursor.limit || !acquire(cursor.chunk)) {
+            claim = claim();
+        } else if (buffer.getLong(cursor.chunk) != cursor.sequence) {
+            release(cursor.chunk);
+            claim = claim();
+        }
+        int chunk = claim < 0L ? cursor.chunk : chunkOf(claim);
+        if (active != this) {
+            // запись остановлена, пока блок помечался, и stop() этот блок уже может не ждать
+            release(chunk);
+            return;
+        }
+        if (claim >= 0L) {
+            begin(cursor, claim, epochNs, realNs);
+        }
+        long realDeltaNs = Math.max(-MAX_REAL_DELTA_NS, Math.min(MAX_REAL_DELTA_NS, realNs - cursor.lastRealNs));
+        int position = putVarint(cursor.position, zigzag(epochNs - cursor.lastEpochNs));
+        position = putVarint(position, zigzag(realDeltaNs) << 1 | (instant ? 1L : 0L));
+        cursor.position = position;
+        cursor.lastEpochNs = epochNs;
+        cursor.lastRealNs += realDeltaNs;
+        buffer.putInt(cursor.chunk + 32, position - cursor.chunk - CHUNK_HEADER_SIZE);
+        release(cursor.chunk);
+    }
+
+    /**
+     * Захватить следующий блок и пометить его занятым. Если текущий блок был перезаписан другим
+     * потоком после переполнения кольца, он тоже заменяется новым. Блок, в который в этот момент
+     * пишет другой поток, пропускается.
+     *
+     * @return порядковый номер захвата
+     */
+    private long claim() {
+        long claim;
+        do {
+            claim = claims.getAndIncrement();
+        } while (!acquire(chunkOf(claim)));
+        return claim;
+    }
+
+    private int chunkOf(long claim) {
+        return HEADER_SIZE + (int) (claim % chunkCount) * chunkSize;
+    }
+
+    /**
+     * Заполнить заголовок захваченного блока и перевести в него запись потока
+     */
+    private void begin(Cursor cursor, long claim, long epochNs, long realNs) {
+        int chunk = chunkOf(claim);
+        buffer.putInt(chunk + 32, 0);
+        buffer.putLong(chunk + 8, Thread.currentThread().getId());
+        buffer.putLong(chunk + 16, epochNs);
+        buffer.putLong(chunk + 24, realNs);
+        buffer.putLong(chunk, claim + 1L);
+        cursor.chunk = chunk;
+        cursor.sequence = claim + 1L;
+        cursor.position = chunk + CHUNK_HEADER_SIZE;
+        cursor.limit = chunk + chunkSize;
+        cursor.lastEpochNs = epochNs;
+        cursor.lastRealNs = realNs;
+    }
+
+    /**
+     * Пометить блок занятым
+     *
+     * @return {@code false}, если блок уже занят другим потоком
+     */
+    private boolean acquire(int chunk) {
+        return INTS.compareAndSet(buffer, chunk + BUSY_OFFSET, 0, 1);
+    }
+
+    private void release(int chunk) {
+        INTS.setRelease(buffer, chunk + BUSY_OFFSET, 0);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private int putVarint(int position, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.put(position++, (byte) ((value & 0x7FL) | 0x80L));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    /**
+     * Положение записи потока в его текущем блоке
+     */
+    private static final class Cursor {
+        private int chunk = 0;
+        private long sequence = -1L;
+        private int position = 0;
+        private int limit = 0;
+        private long lastEpochNs;
+        private long lastRealNs;
+    }
+}
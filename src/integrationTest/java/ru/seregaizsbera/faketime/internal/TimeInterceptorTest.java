@@ -3,9 +3,20 @@ package ru.seregaizsbera.faketime.internal;
 import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
@@ -79,4 +90,303 @@ class TimeInterceptorTest {
         TimeInterceptor.reset();
         assertThat(TimeInterceptor.currentInstant()).isNotEqualTo(time);
     }
+
+    @Test
+    void testBoundedUniqueifier() {
+        TimeInterceptor.reset();
+        TimeInterceptor.setTick(TimeUnit.SECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_BOUNDED_SPIN);
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < 100_000; i++) {
+            Instant time = TimeInterceptor.currentInstant();
+            long epochNs = time.getEpochSecond() * 1_000_000_000L + time.getNano();
+            assertThat(epochNs).isGreaterThan(previous);
+            previous = epochNs;
+        }
+        assertThat(TimeInterceptor.getUniqueifierLeadNs()).isLessThan(TimeUnit.SECONDS.toNanos(1L));
+        TimeInterceptor.reset();
+        assertThat(TimeInterceptor.getUniqueifierLeadNs()).isZero();
+    }
+
+    @Test
+    void testBoundedUniqueifierFineTick() {
+        TimeInterceptor.reset();
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_BOUNDED_SPIN);
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < 100_000; i++) {
+            long epochNs = TimeInterceptor.currentEpochNs();
+            assertThat(epochNs).isGreaterThan(previous);
+            previous = epochNs;
+        }
+        assertThat(TimeInterceptor.getUniqueifierLeadNs()).isLessThan(TimeUnit.MICROSECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_BOUNDED_SPIN);
+        assertThat(TimeInterceptor.getUniqueifierLeadNs()).isZero();
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testStripedUniqueifier() throws Exception {
+        TimeInterceptor.fixAt(1_555_555_555_000_000_000L);
+        TimeInterceptor.setTick(TimeUnit.MICROSECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_STRIPED);
+        List<long[]> results = collectConcurrently(10_000);
+        Set<Long> values = new HashSet<>();
+        for (long[] result : results) {
+            for (int i = 0; i < result.length; i++) {
+                if (i > 0) {
+                    assertThat(result[i]).isGreaterThan(result[i - 1]);
+                }
+                values.add(result[i]);
+            }
+        }
+        assertThat(values).hasSize(results.size() * 10_000);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testStripedUniqueifierRestart() {
+        TimeInterceptor.fixAt(1_555_555_555_000_000_000L);
+        TimeInterceptor.setTick(TimeUnit.MICROSECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_STRIPED);
+        for (int i = 0; i < 1_000; i++) {
+            assertThat(TimeInterceptor.currentEpochNs()).isGreaterThan(1_555_555_555_000_000_000L - 1L);
+        }
+        TimeInterceptor.fixAt(-1_555_555_555_000_000_000L);
+        TimeInterceptor.setTick(TimeUnit.MICROSECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_STRIPED);
+        long epochNs = TimeInterceptor.currentEpochNs();
+        assertThat(epochNs).isGreaterThanOrEqualTo(-1_555_555_555_000_000_000L);
+        assertThat(epochNs).isLessThan(-1_555_555_555_000_000_000L + TimeUnit.MILLISECONDS.toNanos(1L));
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testPerThreadUniqueifier() throws Exception {
+        TimeInterceptor.fixAt(1_555_555_555_000_000_000L);
+        TimeInterceptor.setTick(TimeUnit.MICROSECONDS.toNanos(1L));
+        TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.UNIQUE_PER_THREAD);
+        for (long[] result : collectConcurrently(10_000)) {
+            for (int i = 1; i < result.length; i++) {
+                assertThat(result[i]).isGreaterThan(result[i - 1]);
+            }
+        }
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testCachedInstant() {
+        TimeInterceptor.fixAt(1_555_555_555_123_456_789L);
+        assertThat(TimeInterceptor.currentInstant()).isSameAs(TimeInterceptor.currentInstant());
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(1_555_555_555_123L);
+        // таймер идет от начала часа, поэтому следующий такт наступит только через час
+        TimeInterceptor.resetAt(1_555_556_400_000_000_000L);
+        TimeInterceptor.setTick(TimeUnit.HOURS.toNanos(1L));
+        Instant first = TimeInterceptor.currentInstant();
+        assertThat(first).isEqualTo(Instant.ofEpochSecond(1_555_556_400L));
+        assertThat(TimeInterceptor.currentInstant()).isSameAs(first);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testScopedMonotonic() {
+        TimeInterceptor.reset();
+        try (TimeInterceptor.Scope ignored = TimeInterceptor.openScope()) {
+            TimeInterceptor.setMonotonic(true);
+            TimeInterceptor.shift(TimeUnit.HOURS.toNanos(1L));
+            long before = TimeInterceptor.currentTimeMillis();
+            TimeInterceptor.shift(0L);
+            assertThat(TimeInterceptor.currentTimeMillis()).isGreaterThanOrEqualTo(before);
+        }
+        TimeInterceptor.shift(TimeUnit.HOURS.toNanos(1L));
+        long before = TimeInterceptor.currentTimeMillis();
+        TimeInterceptor.shift(0L);
+        assertThat(TimeInterceptor.currentTimeMillis()).isLessThan(before);
+        TimeInterceptor.slew(TimeUnit.HOURS.toNanos(1L), 1L);
+        assertThat(TimeInterceptor.getOffsetNs()).isLessThan(TimeUnit.MINUTES.toNanos(1L));
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testScopedSnapshot() {
+        TimeInterceptor.reset();
+        try (TimeInterceptor.Scope ignored = TimeInterceptor.openScope()) {
+            TimeInterceptor.setMonotonic(true);
+            try (TimeInterceptor.Snapshot snapshot = TimeInterceptor.push()) {
+                TimeInterceptor.setMonotonic(false);
+            }
+            TimeInterceptor.shift(TimeUnit.HOURS.toNanos(1L));
+            long before = TimeInterceptor.currentTimeMillis();
+            TimeInterceptor.shift(0L);
+            assertThat(TimeInterceptor.currentTimeMillis()).isGreaterThanOrEqualTo(before);
+        }
+        TimeInterceptor.shift(TimeUnit.HOURS.toNanos(1L));
+        long before = TimeInterceptor.currentTimeMillis();
+        TimeInterceptor.shift(0L);
+        assertThat(TimeInterceptor.currentTimeMillis()).isLessThan(before);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testScopedCoarse() throws InterruptedException {
+        TimeInterceptor.reset();
+        try (TimeInterceptor.Scope ignored = TimeInterceptor.openScope()) {
+            TimeInterceptor.setCoarse(TimeUnit.HOURS.toNanos(1L));
+            Thread.sleep(50L);
+            long first = TimeInterceptor.currentEpochNs();
+            Thread.sleep(5L);
+            assertThat(TimeInterceptor.currentEpochNs()).isEqualTo(first);
+        }
+        long first = TimeInterceptor.currentEpochNs();
+        Thread.sleep(5L);
+        assertThat(TimeInterceptor.currentEpochNs()).isGreaterThan(first);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testAdvanceAllocation() {
+        TimeInterceptor.fix();
+        TimeInterceptor.setListener(transition -> { });
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        try {
+            for (int i = 0; i < 100_000; i++) {
+                TimeInterceptor.advance(1L);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 1_000_000; i++) {
+                TimeInterceptor.advance(1L);
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            assertThat(allocated).isLessThan(1024L);
+            assertThat(TimeInterceptor.takeAdvance().jumpNs()).isEqualTo(1_100_000L);
+            assertThat(TimeInterceptor.takeAdvance()).isNull();
+        } finally {
+            TimeInterceptor.setListener(null);
+            TimeInterceptor.reset();
+        }
+    }
+
+    @Test
+    void testNanoTime() {
+        TimeInterceptor.reset();
+        TimeInterceptor.enableNanoTime();
+        TimeInterceptor.setAccelerator(60L, 1L);
+        long time1 = TimeInterceptor.nanoTime();
+        Awaitility.await().pollDelay(100L, TimeUnit.MILLISECONDS).until(() -> true);
+        long time2 = TimeInterceptor.nanoTime();
+        assertThat(time2 - time1).isGreaterThanOrEqualTo(TimeUnit.SECONDS.toNanos(6L));
+        TimeInterceptor.fix();
+        long time3 = TimeInterceptor.nanoTime();
+        Awaitility.await().pollDelay(50L, TimeUnit.MILLISECONDS).until(() -> true);
+        assertThat(TimeInterceptor.nanoTime()).isEqualTo(time3).isGreaterThanOrEqualTo(time2);
+        TimeInterceptor.shift(-TimeUnit.HOURS.toNanos(1L));
+        assertThat(TimeInterceptor.nanoTime()).isGreaterThanOrEqualTo(time3);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testAcceleratedSleep() throws InterruptedException {
+        TimeInterceptor.reset();
+        TimeInterceptor.setAccelerator(60L, 1L);
+        long start = System.nanoTime();
+        TimeInterceptor.sleep(TimeUnit.SECONDS.toMillis(6L));
+        long elapsed = System.nanoTime() - start;
+        assertThat(elapsed).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100L))
+                .isLessThan(TimeUnit.SECONDS.toNanos(6L));
+        start = System.nanoTime();
+        TimeInterceptor.parkNanos(TimeUnit.SECONDS.toNanos(6L));
+        TimeInterceptor.parkUntil(this, TimeInterceptor.currentTimeMillis() + TimeUnit.SECONDS.toMillis(6L));
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(6L));
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testFrozenSleep() throws InterruptedException {
+        long epochMs = 1_555_555_555_000L;
+        TimeInterceptor.fixAt(TimeUnit.MILLISECONDS.toNanos(epochMs));
+        long start = System.nanoTime();
+        TimeInterceptor.sleep(1500L);
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs + 1500L);
+        TimeInterceptor.parkNanos(TimeUnit.MILLISECONDS.toNanos(500L));
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs + 2000L);
+        TimeInterceptor.parkUntil(epochMs + 5000L);
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs + 5000L);
+        TimeInterceptor.parkUntil(this, epochMs + 1000L);
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs + 5000L);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1L));
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testFrozenBackgroundWait() throws InterruptedException, ExecutionException {
+        long epochMs = 1_555_555_555_000L;
+        TimeInterceptor.fixAt(TimeUnit.MILLISECONDS.toNanos(epochMs));
+        Thread daemon = new Thread(() -> TimeInterceptor.parkNanos(TimeUnit.MILLISECONDS.toNanos(10L)));
+        daemon.setDaemon(true);
+        daemon.start();
+        daemon.join();
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> TimeInterceptor.parkNanos(TimeUnit.MILLISECONDS.toNanos(10L))).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs);
+        TimeInterceptor.parkNanos(TimeUnit.MILLISECONDS.toNanos(10L));
+        assertThat(TimeInterceptor.currentTimeMillis()).isEqualTo(epochMs + 10L);
+        TimeInterceptor.reset();
+    }
+
+    @Test
+    void testFrozenTimedWait() {
+        TimeInterceptor.enableNanoTime();
+        TimeInterceptor.fix();
+        long start = System.nanoTime();
+        // Так ожидают CountDownLatch.await(long, TimeUnit) и другие синхронизаторы на основе AbstractQueuedSynchronizer
+        long deadline = TimeInterceptor.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        int iterations = 0;
+        for (long remaining = deadline - TimeInterceptor.nanoTime(); remaining > 0L; remaining = deadline - TimeInterceptor.nanoTime()) {
+            TimeInterceptor.parkNanos(this, remaining);
+            iterations++;
+        }
+        assertThat(iterations).isEqualTo(1);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1L));
+        TimeInterceptor.reset();
+    }
+
+    /**
+     * Получить значения таймера одновременно из нескольких потоков
+     *
+     * @param count количество значений, которые получает каждый поток
+     * @return значения в наносекундах после Unix Epoch для каждого потока в порядке получения
+     */
+    private static List<long[]> collectConcurrently(int count) throws InterruptedException, ExecutionException {
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        CountDownLatch start = new CountDownLatch(1);
+        Callable<long[]> task = () -> {
+            long[] result = new long[count];
+            start.await();
+            for (int i = 0; i < count; i++) {
+                Instant time = TimeInterceptor.currentInstant();
+                result[i] = time.getEpochSecond() * 1_000_000_000L + time.getNano();
+            }
+            return result;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+            List<long[]> results = new ArrayList<>();
+            for (Future<long[]> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
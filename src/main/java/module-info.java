@@ -1,5 +1,6 @@
 module ru.seregaizsbera.faketime {
     requires java.instrument;
+    requires java.management;
     requires net.bytebuddy;
     requires net.bytebuddy.agent;
     requires static ru.seregaizsbera.faketime.interceptors;
@@ -2,6 +2,7 @@ package ru.seregaizsbera.faketime;
 
 import ru.seregaizsbera.faketime.impl.FakeTimeInternal;
 
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.concurrent.TimeUnit;
@@ -20,6 +21,7 @@ import java.util.concurrent.TimeUnit;
  *     <li>{@link #setAccelerator(long, long)}, {@link #resetAccelerator()}, {@link #setUniqueifier(FakeTimeUniqueifier)}</li>
  * </ol>
  * Функции из каждой группы сбрасывают значения, определяемые функциями из нижних групп, на значения по умолчанию.
+ * Чтобы изменить настройки из нескольких групп одним действием, используется {@link #update(FakeTimeUpdate)}.
  */
 public interface FakeTime {
     /**
@@ -36,6 +38,15 @@ public interface FakeTime {
      */
     void reset();
 
+    /**
+     * Сбросить таймер к системным значениям и вернуть исходные реализации {@link System#currentTimeMillis()}
+     * и {@link java.time.Clock#currentInstant()}, чтобы JIT снова мог использовать встроенную реализацию таймера.
+     * Перехват автоматически восстанавливается при следующем изменении таймера через этот объект.
+     * Перехваты {@link #interceptNanoTime()} и {@link #interceptSleep()} не снимаются. Области, открытые
+     * методом {@link #openScope()}, не действуют, пока перехват не восстановлен.
+     */
+    void uninstall();
+
     /**
      * Остановить таймер на текущем системном времени
      */
@@ -88,6 +99,23 @@ public interface FakeTime {
      */
     void shift(long shift, TimeUnit unit);
 
+    /**
+     * Продвинуть таймер вперед на указанный интервал. В отличие от {@link #shift(long)} сдвиг не заменяется,
+     * а увеличивается. Вызов не создает объектов и безопасен при параллельных вызовах из разных потоков,
+     * поэтому подходит для моделирования, в котором таймер продвигается на каждом событии.
+     * {@link System#nanoTime()} не продвигается. Если интервал меньше или равен нулю, то ничего не делает.
+     *
+     * @param nanos интервал в наносекундах
+     */
+    void advance(long nanos);
+
+    /**
+     * Продвинуть таймер вперед на указанный интервал, см. {@link #advance(long)}
+     *
+     * @param delta интервал
+     */
+    void advance(Duration delta);
+
     /**
      * Сдвинуть время системного таймера на указанный момент
      *
@@ -114,6 +142,8 @@ public interface FakeTime {
      * Установить такт таймера. Все значения таймера будут кратны указанному такту.
      *
      * @param tickNs размер такта в наносекундах
+     * @throws IllegalStateException если таймер работает по программе {@link #program(FakeTimeTimeline)}
+     *                               или воспроизводит значения {@link #replay(Path, boolean, FakeTimeReplayPolicy)}
      */
     void setTick(long tickNs);
 
@@ -121,6 +151,8 @@ public interface FakeTime {
      * Установить такт таймера. Все значения таймера будут кратны указанному такту.
      *
      * @param tick размер такта
+     * @throws IllegalStateException если таймер работает по программе {@link #program(FakeTimeTimeline)}
+     *                               или воспроизводит значения {@link #replay(Path, boolean, FakeTimeReplayPolicy)}
      */
     void setTick(Duration tick);
 
@@ -135,6 +167,8 @@ public interface FakeTime {
      *
      * @param numerator числитель
      * @param denominator знаменатель
+     * @throws IllegalStateException если таймер работает по программе {@link #program(FakeTimeTimeline)}
+     *                               или воспроизводит значения {@link #replay(Path, boolean, FakeTimeReplayPolicy)}
      */
     void setAccelerator(long numerator, long denominator);
 
@@ -145,6 +179,9 @@ public interface FakeTime {
 
     /**
      * Вариант обеспечения уникальности значений
+     *
+     * @throws IllegalStateException если таймер работает по программе {@link #program(FakeTimeTimeline)}
+     *                               или воспроизводит значения {@link #replay(Path, boolean, FakeTimeReplayPolicy)}
      */
     void setUniqueifier(FakeTimeUniqueifier uniqueifier);
 
@@ -152,4 +189,200 @@ public interface FakeTime {
      * Отключает обеспечения уникальности значений
      */
     void resetUniqueifier();
+
+    /**
+     * Изменить несколько настроек таймера одним действием. Новое состояние таймера вычисляется из текущего
+     * и устанавливается атомарно: другие потоки не видят промежуточных сочетаний настроек, а одновременные
+     * изменения из разных потоков не теряются.
+     *
+     * @param update изменяемые настройки
+     * @throws IllegalStateException если изменение не устанавливает время, а таймер работает по программе
+     *                               {@link #program(FakeTimeTimeline)} или воспроизводит значения
+     *                               {@link #replay(Path, boolean, FakeTimeReplayPolicy)}
+     */
+    void update(FakeTimeUpdate update);
+
+    /**
+     * Добавить получателя сообщений об изменениях общего таймера: о новых настройках, продвижении
+     * и сдвиге таймера при ожидании. Сообщения рассылаются в отдельном потоке, поэтому изменение таймера
+     * не ждет получателей, а изменения, сделанные подряд, объединяются в одно сообщение. Изменения таймеров
+     * областей {@link #openScope()} и переходы, которые таймер выполняет сам по программе {@link #program(FakeTimeTimeline)},
+     * при плавном сдвиге или при воспроизведении, не сообщаются.
+     *
+     * @param listener получатель
+     */
+    void addListener(FakeTimeListener listener);
+
+    /**
+     * Удалить получателя сообщений об изменениях таймера
+     *
+     * @param listener получатель, добавленный методом {@link #addListener(FakeTimeListener)}
+     */
+    void removeListener(FakeTimeListener listener);
+
+    /**
+     * Опережение значений таймера, которое накопилось из-за обеспечения уникальности
+     *
+     * @return разница между последним выданным значением и значением таймера без обеспечения уникальности
+     */
+    Duration getUniqueifierLead();
+
+    /**
+     * Сохранить состояние таймера, действующее в текущем потоке, вместе с функцией уникальности и запретом
+     * идти назад. Закрытие результата возвращает таймеру сохраненное состояние без пересчета настроек,
+     * даже если таймер с тех пор изменялся. Сохраненные состояния можно вкладывать друг в друга.
+     * Если состояние сохранено в области {@link #openScope()}, то оно возвращается в эту область.
+     *
+     * @return сохраненное состояние
+     */
+    FakeTimeSnapshot push();
+
+    /**
+     * Открыть в текущем потоке область действия собственного таймера, чтобы тесты, зависящие от времени,
+     * могли выполняться параллельно. В момент открытия таймер области совпадает с таймером, действующим в потоке.
+     * Вызовы методов этого объекта из потоков, находящихся в области, изменяют только ее таймер.
+     * Счетчик {@link System#nanoTime()} и часовой пояс остаются общими, ожидания {@link #interceptSleep()}
+     * отсчитываются по общему таймеру.
+     *
+     * @return открытая область, которую нужно закрыть в том же потоке
+     */
+    FakeTimeScope openScope();
+
+    /**
+     * Создать планировщик, задержки которого измеряются по таймеру. Задачи выполняются в потоке, который
+     * изменяет таймер через этот объект, или в потоке, вызвавшем {@link FakeTimeScheduledExecutor#runUntilIdle()}
+     * или {@link FakeTimeScheduledExecutor#advanceToNextDeadline()}. Если в этот момент задачи планировщика
+     * выполняет другой поток, наступившие задачи выполнит он. Реального ожидания нет. Если планировщик создан
+     * в области {@link #openScope()}, сроки отсчитываются по таймеру этой области из любого потока, а после ее
+     * закрытия - по общему таймеру.
+     *
+     * @return новый планировщик
+     */
+    FakeTimeScheduledExecutor newScheduledExecutor();
+
+    /**
+     * Включить выборочные события JFR {@code ru.seregaizsbera.faketime.ClockRead} об обращениях к таймеру
+     * со стеком вызова. Событие выдается не чаще одного раза за указанный период. События об изменениях таймера
+     * {@code ru.seregaizsbera.faketime.StateChange} выдаются всегда, когда идет запись JFR.
+     *
+     * @param period минимальный интервал между событиями, {@link Duration#ZERO} отключает события
+     */
+    void setClockReadSampling(Duration period);
+
+    /**
+     * Начать сбор статистики мест, из которых читается таймер. Для обращений, попавших в выборку, по стеку
+     * определяется вызывающий метод. Ранее собранная статистика удаляется. При завершении JVM отчет выводится
+     * в {@link System#err}.
+     *
+     * @param sampleRate в выборку попадает в среднем одно обращение из {@code sampleRate}
+     */
+    void startCallSiteProfiling(int sampleRate);
+
+    /**
+     * Остановить сбор статистики мест обращения к таймеру. Собранная статистика сохраняется.
+     */
+    void stopCallSiteProfiling();
+
+    /**
+     * Отчет о местах обращения к таймеру: место, количество обращений в выборке, доля обращений
+     * и количество потоков, упорядоченные по убыванию количества обращений
+     *
+     * @return текст отчета или пустая строка, если статистики нет
+     */
+    String getCallSiteReport();
+
+    /**
+     * Начать запись всех выданных значений таймера вместе с идентификатором потока и системным временем
+     * в кольцевой буфер в файле, отображенном в память. Запись не создает объектов и не синхронизирует потоки.
+     * При переполнении буфера самые старые значения перезаписываются. Прочитать файл можно с помощью
+     * {@link FakeTimeRecording}. Если запись уже идет, она завершается.
+     *
+     * @param file файл, существующий файл перезаписывается
+     * @param capacity размер буфера в байтах, не больше 2 ГБ
+     */
+    void startRecording(Path file, long capacity);
+
+    /**
+     * Завершить запись значений таймера и сбросить буфер в файл
+     */
+    void stopRecording();
+
+    /**
+     * Выдавать значения таймера из записанной последовательности вместо вычисления. Каждое обращение
+     * к таймеру получает следующее значение. Файл отображается в память, поэтому последовательность
+     * может быть больше кучи. Файл создается из записи методом {@link FakeTimeRecording#toReplay(Path, Path)}.
+     * Настройки такта, скорости и уникальности при воспроизведении не применяются, а попытка изменить их
+     * без установки времени завершается исключением {@link IllegalStateException}.
+     *
+     * @param file файл с последовательностями значений
+     * @param perThread {@code true} - каждый поток получает значения, записанные для потока с тем же идентификатором,
+     *                  {@code false} - все потоки получают значения общей последовательности в порядке обращения.
+     *                  Идентификаторы потоков выдаются JVM по порядку создания потоков, поэтому поток получает
+     *                  свою последовательность, только если потоки создаются в том же порядке, что и при записи.
+     * @param policy поведение таймера, когда последовательность закончилась
+     */
+    void replay(Path file, boolean perThread, FakeTimeReplayPolicy policy);
+
+    /**
+     * Установить программу изменения таймера: переходы на заданные моменты, изменения скорости и остановки,
+     * которые наступают через заданное время после вызова этого метода. Переходы выполняются при обращениях
+     * к таймеру без фоновых потоков, поэтому тесту не нужно ждать нужного момента, чтобы изменить таймер.
+     * Такт, уникальность и {@link #interceptNanoTime()} программа не учитывает, а попытка изменить такт, скорость
+     * или уникальность без установки времени завершается исключением {@link IllegalStateException}.
+     *
+     * @param timeline программа
+     */
+    void program(FakeTimeTimeline timeline);
+
+    /**
+     * Плавно сдвинуть время относительно системного таймера, как это делает NTP. Вместо скачка таймер
+     * идет с постоянной скоростью быстрее или медленнее системного, пока сдвиг не достигнет указанного значения.
+     * Переход удлиняется так, чтобы таймер замедлялся или ускорялся не более чем вдвое и не шел назад.
+     *
+     * @param shift итоговый сдвиг
+     * @param duration продолжительность перехода по системному таймеру
+     */
+    void slew(Duration shift, Duration duration);
+
+    /**
+     * Запретить таймеру идти назад. После перевода таймера назад {@link System#currentTimeMillis()}
+     * и {@link java.time.Clock#currentInstant()} выдают наибольшее из выданных значений, пока таймер его не догонит.
+     * Запрет действует в области {@link #openScope()}, в которой находится поток, или на общий таймер
+     * и не сбрасывается другими изменениями таймера, кроме {@link #reset()}.
+     *
+     * @param enabled {@code true} - значения таймера не уменьшаются
+     */
+    void setMonotonic(boolean enabled);
+
+    /**
+     * Включить грубый таймер: {@link System#currentTimeMillis()} и {@link java.time.Clock#currentInstant()}
+     * выдают значение из ячейки, которую фоновый поток обновляет с указанным периодом. Обращение к таймеру
+     * становится чтением одной переменной, но значения меняются только раз в период. Значение вычисляется
+     * по всем настройкам таймера, кроме уникальности. Режим действует в области {@link #openScope()}, в которой
+     * находится поток, или на общий таймер, не сбрасывается другими изменениями таймера, кроме {@link #reset()},
+     * и на остановленный таймер не влияет.
+     *
+     * @param period период обновления, {@link Duration#ZERO} отключает режим
+     */
+    void setCoarse(Duration period);
+
+    /**
+     * Подменить {@link System#nanoTime()} виртуальным монотонным счетчиком, согласованным с таймером.
+     * Счетчик ускоряется вместе с таймером, останавливается при остановке таймера и не реагирует на сдвиги,
+     * поэтому никогда не идет назад. Подмена действует до конца работы JVM. Пока таймер остановлен,
+     * ожидания с тайм-аутом, которые проверяют {@link System#nanoTime()}, не завершаются.
+     */
+    void interceptNanoTime();
+
+    /**
+     * Подменить {@link Thread#sleep(long)}, {@link java.util.concurrent.locks.LockSupport#parkNanos(long)}
+     * и {@link java.util.concurrent.locks.LockSupport#parkUntil(long)} вместе с их вариантами так, чтобы
+     * ожидание измерялось по таймеру. При ускоренном таймере реальное ожидание сокращается во столько же раз.
+     * При остановленном таймере ожидания нет, вместо этого таймер сдвигается на длительность ожидания.
+     * Фоновые потоки и потоки пулов остановленный таймер не сдвигают и ждут реальное время.
+     * Ожидания, как и {@link System#nanoTime()}, отсчитываются по общему таймеру, в том числе в областях
+     * {@link #openScope()}: остановка или ускорение таймера области на них не влияет. Вместе с ожиданиями подменяется {@link System#nanoTime()}, см. {@link #interceptNanoTime()}.
+     * Подмена действует до конца работы JVM. Метод {@link Object#wait(long)} не подменяется.
+     */
+    void interceptSleep();
 }
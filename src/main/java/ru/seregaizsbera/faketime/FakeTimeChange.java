@@ -0,0 +1,30 @@
+package ru.seregaizsbera.faketime;
+
+import java.time.Duration;
+
+/**
+ * Изменение общего таймера, о котором сообщается {@link FakeTimeListener}. Несколько изменений,
+ * сделанных подряд, объединяются в одно: настройки берутся до первого и после последнего изменения,
+ * а скачки таймера складываются.
+ *
+ * @param previous настройки до изменения
+ * @param current настройки после изменения
+ * @param jump на сколько изменилось значение таймера в момент изменения, отрицательное при переводе назад
+ * @param changes количество объединенных изменений
+ */
+public record FakeTimeChange(Parameters previous, Parameters current, Duration jump, int changes) {
+    /**
+     * Настройки таймера
+     *
+     * @param frozen таймер остановлен
+     * @param shift сдвиг времени относительно системного таймера, для остановленного таймера - его значение
+     *              после Unix Epoch
+     * @param tick размер такта
+     * @param numerator числитель скорости
+     * @param denominator знаменатель скорости
+     * @param uniqueifier вариант обеспечения уникальности
+     */
+    public record Parameters(boolean frozen, Duration shift, Duration tick, long numerator, long denominator,
+                             FakeTimeUniqueifier uniqueifier) {
+    }
+}
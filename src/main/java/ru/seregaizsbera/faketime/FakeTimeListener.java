@@ -0,0 +1,15 @@
+package ru.seregaizsbera.faketime;
+
+/**
+ * Получатель сообщений об изменениях общего таймера, см. {@link FakeTime#addListener(FakeTimeListener)}
+ */
+@FunctionalInterface
+public interface FakeTimeListener {
+    /**
+     * Таймер изменился. Вызывается в отдельном потоке, общем для всех получателей. Если таймер изменился
+     * несколько раз, пока получатели обрабатывали предыдущее сообщение, изменения объединяются в одно.
+     *
+     * @param change изменение
+     */
+    void timeChanged(FakeTimeChange change);
+}
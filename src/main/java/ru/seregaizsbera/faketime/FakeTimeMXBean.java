@@ -0,0 +1,106 @@
+package ru.seregaizsbera.faketime;
+
+/**
+ * Управляемый объект JMX, через который можно узнать состояние таймера и частоту обращений к нему.
+ * Регистрируется при установке агента под именем {@value #OBJECT_NAME}. Значения настроек относятся
+ * к общему таймеру, области {@link FakeTime#openScope()} не учитываются. Счетчики обращений не ведутся,
+ * пока их не запросят или не включат методом {@link #enableStatistics()}, чтобы зарегистрированный объект
+ * не замедлял обращения к таймеру, когда за ним не наблюдают.
+ */
+public interface FakeTimeMXBean {
+    /**
+     * Имя, под которым объект регистрируется в платформенном {@link javax.management.MBeanServer}
+     */
+    String OBJECT_NAME = "ru.seregaizsbera.faketime:type=FakeTime";
+
+    /**
+     * Режим таймера
+     *
+     * @return {@code SYSTEM} - системное время без изменений, {@code FIXED} - таймер остановлен,
+     * {@code REPLAY} - значения выдаются из записанной последовательности, {@code PROGRAM} - таймер изменяется
+     * по программе, {@code SLEWING} - таймер плавно переходит к новому сдвигу, {@code SHIFTED} - время изменено иначе
+     */
+    String getMode();
+
+    /**
+     * Сдвиг таймера относительно системного времени, для остановленного таймера - его значение
+     *
+     * @return количество наносекунд
+     */
+    long getShiftNanos();
+
+    /**
+     * Размер такта таймера
+     *
+     * @return количество наносекунд
+     */
+    long getTickNanos();
+
+    /**
+     * Множитель скорости таймера
+     *
+     * @return дробь вида {@code числитель/знаменатель}
+     */
+    String getAccelerator();
+
+    /**
+     * Функция обеспечения уникальности
+     *
+     * @return имя константы {@link FakeTimeUniqueifier}
+     */
+    String getUniqueifier();
+
+    /**
+     * Текущая разница между таймером и системным временем
+     *
+     * @return количество миллисекунд, положительное, если таймер опережает системное время
+     */
+    long getOffsetMillis();
+
+    /**
+     * Опережение значений таймера, которое накопилось из-за обеспечения уникальности
+     *
+     * @return количество наносекунд
+     */
+    long getUniqueifierLeadNanos();
+
+    /**
+     * Включить счетчики обращений к таймеру. Счетчики также включаются при первом запросе любого из них.
+     */
+    void enableStatistics();
+
+    /**
+     * Количество вызовов {@link System#currentTimeMillis()} после включения счетчиков
+     *
+     * @return количество вызовов
+     */
+    long getCurrentTimeMillisCalls();
+
+    /**
+     * Количество вызовов {@link java.time.Clock#currentInstant()} после включения счетчиков
+     *
+     * @return количество вызовов
+     */
+    long getCurrentInstantCalls();
+
+    /**
+     * Количество значений, которые функция уникальности увеличила из-за совпадения с предыдущими
+     *
+     * @return количество значений
+     */
+    long getUniqueifierCollisions();
+
+    /**
+     * Количество повторов атомарной операции в {@link FakeTimeUniqueifier#UNIQUE_ATOMIC}
+     *
+     * @return количество повторов
+     */
+    long getUniqueifierCasRetries();
+
+    /**
+     * Количество ожиданий блокировки в {@link FakeTimeUniqueifier#UNIQUE_LOCK}
+     *
+     * @return количество ожиданий
+     */
+    long getUniqueifierLockContentions();
+}
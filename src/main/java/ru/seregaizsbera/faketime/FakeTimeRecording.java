@@ -0,0 +1,237 @@
+package ru.seregaizsbera.faketime;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Чтение файла, записанного методом {@link FakeTime#startRecording(Path, long)}. Записи одного потока читаются
+ * в том порядке, в котором значения были выданы. Записи разных потоков упорядочены по блокам, поэтому
+ * для восстановления общего порядка их нужно сортировать по системному времени.
+ * <p>
+ * Запуск из командной строки выводит все записи файла в текстовом виде:
+ * {@code java -cp faketime.jar ru.seregaizsbera.faketime.FakeTimeRecording file},
+ * а с ключом {@code -replay} преобразует запись в файл для {@link FakeTime#replay(Path, boolean, FakeTimeReplayPolicy)}:
+ * {@code java -cp faketime.jar ru.seregaizsbera.faketime.FakeTimeRecording -replay file replayFile}
+ */
+public final class FakeTimeRecording {
+    private static final long MAGIC = 0x3130304345525446L;
+    private static final int HEADER_SIZE = 64;
+    private static final int CHUNK_HEADER_SIZE = 40;
+    private static final long REPLAY_MAGIC = 0x3130304C50525446L;
+    private static final long GLOBAL = -1L;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private FakeTimeRecording() {}
+
+    /**
+     * Запись о выданном значении таймера
+     *
+     * @param chunk порядковый номер блока, в котором находится запись
+     * @param threadId идентификатор потока, получившего значение
+     * @param epochNs выданное значение таймера в наносекундах после Unix Epoch
+     * @param realNs системное время в момент выдачи в наносекундах после Unix Epoch
+     * @param instant {@code true}, если значение выдано {@link java.time.Clock#currentInstant()},
+     *                {@code false}, если {@link System#currentTimeMillis()}
+     */
+    public record Entry(long chunk, long threadId, long epochNs, long realNs, boolean instant) {
+    }
+
+    /**
+     * Прочитать все записи файла. Файл отображается в память, поэтому записи не загружаются в кучу целиком.
+     *
+     * @param file файл с записью
+     * @param consumer получатель записей
+     * @throws IOException ошибка чтения файла
+     */
+    public static void forEach(Path file, Consumer<Entry> consumer) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+            throw new IOException("Файл не является записью значений таймера (rcmg)");
+        }
+        int chunkSize = buffer.getInt(8);
+        int chunkCount = buffer.getInt(12);
+        if (chunkSize <= CHUNK_HEADER_SIZE || chunkCount <= 0 || HEADER_SIZE + (long) chunkSize * chunkCount > buffer.limit()) {
+            throw new IOException("Поврежден заголовок файла записи (rchd)");
+        }
+        List<Integer> chunks = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            int chunk = HEADER_SIZE + i * chunkSize;
+            if (buffer.getLong(chunk) != 0L) {
+                chunks.add(chunk);
+            }
+        }
+        chunks.sort(Comparator.comparingLong(buffer::getLong));
+        for (int chunk : chunks) {
+            readChunk(buffer, chunk, chunkSize, consumer);
+        }
+    }
+
+    private static void readChunk(ByteBuffer buffer, int chunk, int chunkSize, Consumer<Entry> consumer) {
+        long sequence = buffer.getLong(chunk) - 1L;
+        long threadId = buffer.getLong(chunk + 8);
+        long epochNs = buffer.getLong(chunk + 16);
+        long realNs = buffer.getLong(chunk + 24);
+        int end = chunk + CHUNK_HEADER_SIZE + Math.min(buffer.getInt(chunk + 32), chunkSize - CHUNK_HEADER_SIZE);
+        int[] position = {chunk + CHUNK_HEADER_SIZE};
+        while (position[0] < end) {
+            epochNs += unzigzag(getVarint(buffer, position));
+            long real = getVarint(buffer, position);
+            realNs += unzigzag(real >>> 1);
+            consumer.accept(new Entry(sequence, threadId, epochNs, realNs, (real & 1L) != 0L));
+        }
+    }
+
+    /**
+     * Преобразовать запись в файл последовательностей для {@link FakeTime#replay(Path, boolean, FakeTimeReplayPolicy)}.
+     * Для каждого потока сохраняется последовательность его значений, а общая последовательность
+     * составляется из значений всех потоков в порядке системного времени их выдачи.
+     * Значения одного потока при слиянии не переставляются.
+     *
+     * @param recording файл с записью
+     * @param replay файл последовательностей, существующий файл перезаписывается
+     * @throws IOException ошибка чтения или записи файла
+     */
+    public static void toReplay(Path recording, Path replay) throws IOException {
+        Map<Long, ThreadValues> threads = new LinkedHashMap<>();
+        forEach(recording, entry -> threads.computeIfAbsent(entry.threadId(), ThreadValues::new).add(entry));
+        long total = 0L;
+        for (ThreadValues values : threads.values()) {
+            total += values.size;
+        }
+        try (var channel = FileChannel.open(replay, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(REPLAY_MAGIC);
+            buffer.putInt(threads.size() + 1);
+            buffer.putInt(0);
+            long offset = 16L + 24L * (threads.size() + 1);
+            buffer = putIndexEntry(channel, buffer, GLOBAL, offset, total);
+            offset += 8L * total;
+            for (ThreadValues values : threads.values()) {
+                buffer = putIndexEntry(channel, buffer, values.threadId, offset, values.size);
+                offset += 8L * values.size;
+            }
+            var queue = new PriorityQueue<ThreadValues>(Comparator.comparingLong(ThreadValues::headRealNs));
+            for (ThreadValues values : threads.values()) {
+                if (values.size > 0) {
+                    queue.add(values);
+                }
+            }
+            ThreadValues values;
+            while ((values = queue.poll()) != null) {
+                buffer = putValue(channel, buffer, values.epochNs[values.head++]);
+                if (values.head < values.size) {
+                    queue.add(values);
+                }
+            }
+            for (ThreadValues thread : threads.values()) {
+                for (int i = 0; i < thread.size; i++) {
+                    buffer = putValue(channel, buffer, thread.epochNs[i]);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static ByteBuffer putIndexEntry(FileChannel channel, ByteBuffer buffer, long threadId, long offset, long count) throws IOException {
+        buffer = putValue(channel, buffer, threadId);
+        buffer = putValue(channel, buffer, offset);
+        return putValue(channel, buffer, count);
+    }
+
+    private static ByteBuffer putValue(FileChannel channel, ByteBuffer buffer, long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            flush(channel, buffer);
+        }
+        return buffer.putLong(value);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Значения одного потока в порядке выдачи
+     */
+    private static final class ThreadValues {
+        private final long threadId;
+        private long[] epochNs = new long[16];
+        private long[] realNs = new long[16];
+        private int size = 0;
+        private int head = 0;
+
+        ThreadValues(long threadId) {
+            this.threadId = threadId;
+        }
+
+        void add(Entry entry) {
+            if (size == epochNs.length) {
+                epochNs = Arrays.copyOf(epochNs, size * 2);
+                realNs = Arrays.copyOf(realNs, size * 2);
+            }
+            epochNs[size] = entry.epochNs();
+            realNs[size] = entry.realNs();
+            size++;
+        }
+
+        long headRealNs() {
+            return realNs[head];
+        }
+    }
+
+    private static long getVarint(ByteBuffer buffer, int[] position) {
+        long result = 0L;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position[0]++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    /**
+     * Вывести записи файла в текстовом виде: номер блока, поток, значение таймера, системное время, метод
+     *
+     * @param args путь к файлу
+     * @throws IOException ошибка чтения файла
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("-replay")) {
+            toReplay(Path.of(args[1]), Path.of(args[2]));
+            return;
+        }
+        if (args.length != 1) {
+            System.err.println("Использование: FakeTimeRecording <файл> | -replay <файл> <файл последовательностей>");
+            return;
+        }
+        PrintStream out = System.out;
+        forEach(Path.of(args[0]), entry -> out.printf(Locale.ROOT, "%d\t%d\t%d\t%d\t%s%n", entry.chunk(), entry.threadId(),
+                entry.epochNs(), entry.realNs(), entry.instant() ? "currentInstant" : "currentTimeMillis"));
+    }
+}
@@ -0,0 +1,21 @@
+package ru.seregaizsbera.faketime;
+
+/**
+ * Поведение таймера, когда записанная последовательность значений закончилась
+ */
+public enum FakeTimeReplayPolicy {
+    /**
+     * Таймер останавливается на последнем значении последовательности
+     */
+    FREEZE,
+    /**
+     * Таймер идет от последнего значения последовательности со скоростью системного таймера
+     */
+    CONTINUE,
+    /**
+     * Обращение к таймеру завершается исключением {@link IllegalStateException}. Это касается только потоков
+     * со своей последовательностью, а при общей последовательности - потоков, которые не являются фоновыми
+     * потоками или потоками пулов. Остальные потоки получают последнее значение, как при {@link #FREEZE}.
+     */
+    FAIL
+}
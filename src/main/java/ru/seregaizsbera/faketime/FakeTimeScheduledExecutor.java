@@ -0,0 +1,38 @@
+package ru.seregaizsbera.faketime;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Планировщик, в котором задержки измеряются по таймеру, а не по реальному времени. Собственных потоков
+ * у планировщика нет. Задачи, срок которых наступил, выполняются по порядку сроков при каждом изменении
+ * таймера через {@link FakeTime}, а также при вызове {@link #runUntilIdle()} и {@link #advanceToNextDeadline()}.
+ * Задачи, переданные через {@link #execute(Runnable)} и {@code submit}, считаются задачами с нулевой задержкой.
+ * Изменения таймера, сделанные не через {@link FakeTime}, например, при подмененном {@link Thread#sleep(long)},
+ * задачи не запускают, их запускает следующий вызов {@link #runUntilIdle()}.
+ */
+public interface FakeTimeScheduledExecutor extends ScheduledExecutorService {
+    /**
+     * Выполнить в текущем потоке все задачи, срок которых наступил по таймеру, включая задачи,
+     * запланированные ими на уже наступивший срок. Таймер не изменяется.
+     * Вызов из выполняемой задачи ничего не делает.
+     */
+    void runUntilIdle();
+
+    /**
+     * Перевести таймер на срок ближайшей задачи и выполнить все задачи, срок которых наступил.
+     * Таймер продвигается вперед через {@link FakeTime#advance(long)}, поэтому такт, скорость и уникальность
+     * значений сохраняются. Если срок ближайшей задачи уже наступил, таймер не изменяется.
+     *
+     * @return {@code false}, если задач нет
+     */
+    boolean advanceToNextDeadline();
+
+    /**
+     * Срок ближайшей задачи
+     *
+     * @return момент времени по таймеру или пустое значение, если задач нет
+     */
+    Optional<Instant> getNextDeadline();
+}
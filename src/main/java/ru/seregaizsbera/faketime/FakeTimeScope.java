@@ -0,0 +1,47 @@
+package ru.seregaizsbera.faketime;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Область действия собственного таймера, открытая через {@link FakeTime#openScope()}. Пока область открыта,
+ * потоки, находящиеся в ней, видят только ее таймер, а вызовы методов {@link FakeTime} из этих потоков
+ * изменяют только его. Остальные потоки используют общий таймер.
+ * <p>
+ * Область наследуется потоками, которые созданы внутри нее. Потоки пулов {@link java.util.concurrent.ForkJoinPool}
+ * и {@link java.util.concurrent.ThreadPoolExecutor} область не наследуют, даже если пул создал их по требованию
+ * внутри области, поэтому задачи, передаваемые в пулы, в том числе в {@link java.util.concurrent.ForkJoinPool#commonPool()}
+ * и {@link java.util.concurrent.CompletableFuture}, нужно оборачивать методами {@code wrap}. После закрытия области все оставшиеся в ней потоки используют общий таймер.
+ */
+public interface FakeTimeScope extends AutoCloseable {
+    /**
+     * Обернуть задачу так, чтобы она выполнялась в этой области в любом потоке
+     *
+     * @param task задача
+     * @return обернутая задача
+     */
+    Runnable wrap(Runnable task);
+
+    /**
+     * Обернуть задачу так, чтобы она выполнялась в этой области в любом потоке
+     *
+     * @param task задача
+     * @param <V> тип результата задачи
+     * @return обернутая задача
+     */
+    <V> Callable<V> wrap(Callable<V> task);
+
+    /**
+     * Обернуть исполнителя так, чтобы все переданные ему задачи выполнялись в этой области
+     *
+     * @param executor исполнитель, например, {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * @return обернутый исполнитель
+     */
+    Executor wrap(Executor executor);
+
+    /**
+     * Закрыть область. Поток, открывший область, возвращается в охватывающую область или к общему таймеру.
+     */
+    @Override
+    void close();
+}
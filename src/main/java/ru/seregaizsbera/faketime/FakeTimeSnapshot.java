@@ -0,0 +1,18 @@
+package ru.seregaizsbera.faketime;
+
+/**
+ * Состояние таймера, сохраненное методом {@link FakeTime#push()}. Закрытие возвращает таймеру это состояние.
+ * <pre>
+ * try (var saved = fakeTime.push()) {
+ *     fakeTime.fixAt(Instant.parse("2024-02-29T12:00:00Z"));
+ *     ...
+ * }
+ * </pre>
+ */
+public interface FakeTimeSnapshot extends AutoCloseable {
+    /**
+     * Вернуть таймеру сохраненное состояние. Повторный вызов ничего не делает.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,186 @@
+package ru.seregaizsbera.faketime;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Программа изменения таймера, устанавливаемая методом {@link FakeTime#program(FakeTimeTimeline)}.
+ * Программа состоит из отрезков, каждый из которых начинается через заданное время после установки программы
+ * по системному таймеру и задает значение таймера в начале отрезка и скорость таймера на отрезке.
+ * Значение таймера вычисляется при каждом обращении поиском отрезка в неизменяемом массиве,
+ * поэтому для перехода к следующему отрезку не нужны ни фоновые потоки, ни блокировки.
+ * <pre>
+ * var timeline = FakeTimeTimeline.builder()
+ *         .jumpTo(Duration.ZERO, Instant.parse("2024-03-31T00:59:58Z"))
+ *         .accelerate(Duration.ofSeconds(1), 60, 1)
+ *         .freeze(Duration.ofSeconds(2), Duration.ofSeconds(5))
+ *         .build();
+ * fakeTime.program(timeline);
+ * </pre>
+ */
+public final class FakeTimeTimeline {
+    private final List<Segment> segments;
+
+    private FakeTimeTimeline(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Отрезки программы в порядке начала
+     *
+     * @return неизменяемый список отрезков
+     */
+    public List<Segment> segments() {
+        return segments;
+    }
+
+    /**
+     * Отрезок программы
+     *
+     * @param at время начала отрезка по системному таймеру после установки программы
+     * @param moment значение таймера в начале отрезка или {@code null}, если таймер продолжает идти от значения,
+     *               достигнутого в конце предыдущего отрезка
+     * @param numerator числитель скорости таймера, 0 - таймер остановлен
+     * @param denominator знаменатель скорости таймера
+     */
+    public record Segment(Duration at, Instant moment, long numerator, long denominator) {
+    }
+
+    /**
+     * Создает построитель программы. Если первый отрезок начинается не сразу, до его начала
+     * таймер идет с обычной скоростью от значения, которое он имел при установке программы.
+     *
+     * @return новый построитель
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Построитель программы. Отрезки можно добавлять в любом порядке, при построении они сортируются
+     * по времени начала, а отрезки с одинаковым началом применяются в порядке добавления.
+     * Отрезок, который только меняет значение таймера, сохраняет скорость предыдущего отрезка,
+     * а отрезок, который только меняет скорость, сохраняет достигнутое значение таймера.
+     */
+    public static final class Builder {
+        private final List<Change> changes = new ArrayList<>();
+
+        private Builder() {}
+
+        /**
+         * Перевести таймер на указанный момент. Скорость таймера не изменяется.
+         *
+         * @param at время перехода после установки программы
+         * @param moment новое значение таймера
+         * @return этот объект
+         */
+        public Builder jumpTo(Duration at, Instant moment) {
+            return add(at, moment, -1L, 1L);
+        }
+
+        /**
+         * Изменить скорость таймера. Скорость таймера умножается на числитель и делится на знаменатель.
+         *
+         * @param at время изменения после установки программы
+         * @param numerator числитель, больше нуля
+         * @param denominator знаменатель, больше нуля
+         * @return этот объект
+         */
+        public Builder accelerate(Duration at, long numerator, long denominator) {
+            if (numerator <= 0L || denominator <= 0L) {
+                throw new IllegalArgumentException("Скорость таймера должна быть положительной (tlac)");
+            }
+            return add(at, null, numerator, denominator);
+        }
+
+        /**
+         * Остановить таймер
+         *
+         * @param at время остановки после установки программы
+         * @return этот объект
+         */
+        public Builder freeze(Duration at) {
+            return add(at, null, 0L, 1L);
+        }
+
+        /**
+         * Остановить таймер на указанное время, после чего он продолжит идти с прежней скоростью
+         *
+         * @param at время остановки после установки программы
+         * @param length продолжительность остановки по системному таймеру
+         * @return этот объект
+         */
+        public Builder freeze(Duration at, Duration length) {
+            if (length.isNegative()) {
+                throw new IllegalArgumentException("Продолжительность остановки не может быть отрицательной (tlfz)");
+            }
+            return add(at, null, 0L, 1L).add(at.plus(length), null, -2L, 1L);
+        }
+
+        /**
+         * Вернуть таймеру обычную скорость
+         *
+         * @param at время изменения после установки программы
+         * @return этот объект
+         */
+        public Builder resume(Duration at) {
+            return add(at, null, 1L, 1L);
+        }
+
+        private Builder add(Duration at, Instant moment, long numerator, long denominator) {
+            if (at.isNegative()) {
+                throw new IllegalArgumentException("Время начала отрезка не может быть отрицательным (tlat)");
+            }
+            changes.add(new Change(at, moment, numerator, denominator));
+            return this;
+        }
+
+        /**
+         * Создает программу из добавленных изменений
+         *
+         * @return новая программа
+         */
+        public FakeTimeTimeline build() {
+            List<Change> sorted = new ArrayList<>(changes);
+            sorted.sort(Comparator.comparing(Change::at));
+            List<Segment> result = new ArrayList<>();
+            long numerator = 1L;
+            long denominator = 1L;
+            long runningNumerator = 1L;
+            long runningDenominator = 1L;
+            for (Change change : sorted) {
+                if (change.numerator() == -2L) {
+                    numerator = runningNumerator;
+                    denominator = runningDenominator;
+                } else if (change.numerator() >= 0L) {
+                    numerator = change.numerator();
+                    denominator = change.denominator();
+                    if (numerator != 0L) {
+                        runningNumerator = numerator;
+                        runningDenominator = denominator;
+                    }
+                }
+                Instant moment = change.moment();
+                int last = result.size() - 1;
+                if (last >= 0 && result.get(last).at().equals(change.at())) {
+                    if (moment == null) {
+                        moment = result.get(last).moment();
+                    }
+                    result.remove(last);
+                }
+                result.add(new Segment(change.at(), moment, numerator, denominator));
+            }
+            return new FakeTimeTimeline(List.copyOf(result));
+        }
+
+        /**
+         * Изменение в том виде, в котором оно добавлено в построитель. Числитель -1 означает,
+         * что скорость не изменяется, -2 - что восстанавливается скорость до остановки.
+         */
+        private record Change(Duration at, Instant moment, long numerator, long denominator) {
+        }
+    }
+}
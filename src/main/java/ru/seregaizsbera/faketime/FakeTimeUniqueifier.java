@@ -17,5 +17,29 @@ public enum FakeTimeUniqueifier {
      * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
      * Синхронизация параллельного доступа обеспечивается блокировкой.
      */
-    UNIQUE_LOCK
+    UNIQUE_LOCK,
+    /**
+     * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+     * Каждый поток работает в своей полосе значений, общей переменной для синхронизации нет.
+     * Значения уникальны глобально и возрастают в пределах потока, но могут опережать таймер
+     * на несколько тактов.
+     */
+    UNIQUE_STRIPED,
+    /**
+     * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+     * Повторяющиеся значения нумеруются внутри такта и опережают таймер не более чем на один такт.
+     * Когда номера внутри такта заканчиваются, обращение к таймеру ожидает начала следующего такта.
+     */
+    UNIQUE_BOUNDED_SPIN,
+    /**
+     * Значения таймера модифицируются в большую сторону для обеспечения уникальности.
+     * Повторяющиеся значения нумеруются внутри такта. Когда номера внутри такта заканчиваются,
+     * используются номера следующего такта. Опережение таймера не превышает двух тактов.
+     */
+    UNIQUE_BOUNDED_BORROW,
+    /**
+     * Значения таймера модифицируются в большую сторону, чтобы строго возрастать в пределах одного потока.
+     * Разные потоки могут получить одинаковые значения. Синхронизация между потоками не требуется.
+     */
+    UNIQUE_PER_THREAD
 }
@@ -0,0 +1,270 @@
+package ru.seregaizsbera.faketime;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Изменение нескольких настроек таймера, которое устанавливается одним действием методом
+ * {@link FakeTime#update(FakeTimeUpdate)}. Другие потоки не видят промежуточных сочетаний настроек,
+ * а изменения, сделанные одновременно из разных потоков, не теряются. Настройки, которые не заданы,
+ * сохраняют текущие значения. Порядок применения настроек и сброс нижних групп такой же,
+ * как при последовательном вызове отдельных методов {@link FakeTime}.
+ * <pre>
+ * fakeTime.update(FakeTimeUpdate.builder()
+ *         .resetAt(Instant.parse("2024-03-31T00:59:58Z"))
+ *         .tick(Duration.ofMillis(1))
+ *         .accelerate(60, 1)
+ *         .build());
+ * </pre>
+ */
+public final class FakeTimeUpdate {
+    private final Mode mode;
+    private final long valueNs;
+    private final long tickNs;
+    private final long numerator;
+    private final long denominator;
+    private final FakeTimeUniqueifier uniqueifier;
+
+    private FakeTimeUpdate(Builder builder) {
+        this.mode = builder.mode;
+        this.valueNs = builder.valueNs;
+        this.tickNs = builder.tickNs;
+        this.numerator = builder.numerator;
+        this.denominator = builder.denominator;
+        this.uniqueifier = builder.uniqueifier;
+    }
+
+    /**
+     * Способ установки времени
+     */
+    public enum Mode {
+        /**
+         * Время не изменяется
+         */
+        KEEP,
+        /**
+         * Таймер останавливается на текущем системном времени, см. {@link FakeTime#fix()}
+         */
+        FIX,
+        /**
+         * Таймер останавливается на заданном моменте, см. {@link FakeTime#fixAt(long)}
+         */
+        FIX_AT,
+        /**
+         * Время сдвигается относительно системного таймера, см. {@link FakeTime#shift(long)}
+         */
+        SHIFT,
+        /**
+         * Время сдвигается на заданный момент, см. {@link FakeTime#resetAt(long)}
+         */
+        RESET_AT
+    }
+
+    /**
+     * Способ установки времени
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Момент в наносекундах после Unix Epoch для {@link Mode#FIX_AT} и {@link Mode#RESET_AT}
+     * или сдвиг в наносекундах для {@link Mode#SHIFT}
+     */
+    public long valueNs() {
+        return valueNs;
+    }
+
+    /**
+     * Размер такта в наносекундах, 0 - такт не изменяется
+     */
+    public long tickNs() {
+        return tickNs;
+    }
+
+    /**
+     * Числитель скорости таймера, 0 - скорость не изменяется
+     */
+    public long numerator() {
+        return numerator;
+    }
+
+    /**
+     * Знаменатель скорости таймера, 0 - скорость не изменяется
+     */
+    public long denominator() {
+        return denominator;
+    }
+
+    /**
+     * Вариант обеспечения уникальности или {@code null}, если он не изменяется
+     */
+    public FakeTimeUniqueifier uniqueifier() {
+        return uniqueifier;
+    }
+
+    /**
+     * Создает построитель изменения, которое ничего не изменяет
+     *
+     * @return новый построитель
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Построитель изменения. Значения проверяются при заполнении, поэтому {@link #build()} не завершается ошибкой.
+     */
+    public static final class Builder {
+        private Mode mode = Mode.KEEP;
+        private long valueNs = 0L;
+        private long tickNs = 0L;
+        private long numerator = 0L;
+        private long denominator = 0L;
+        private FakeTimeUniqueifier uniqueifier = null;
+
+        private Builder() {}
+
+        /**
+         * Остановить таймер на текущем системном времени
+         *
+         * @return этот объект
+         */
+        public Builder fix() {
+            return time(Mode.FIX, 0L);
+        }
+
+        /**
+         * Установить время на указанный момент и остановить таймер
+         *
+         * @param epochNs количество наносекунд после Unix Epoch
+         * @return этот объект
+         */
+        public Builder fixAt(long epochNs) {
+            return time(Mode.FIX_AT, epochNs);
+        }
+
+        /**
+         * Установить время на указанный момент и остановить таймер
+         *
+         * @param moment момент времени
+         * @return этот объект
+         */
+        public Builder fixAt(Instant moment) {
+            return fixAt(toEpochNs(moment));
+        }
+
+        /**
+         * Сдвинуть время относительно системного таймера
+         *
+         * @param shiftNs размер сдвига в наносекундах
+         * @return этот объект
+         */
+        public Builder shift(long shiftNs) {
+            return time(Mode.SHIFT, shiftNs);
+        }
+
+        /**
+         * Сдвинуть время относительно системного таймера
+         *
+         * @param shift размер сдвига
+         * @return этот объект
+         */
+        public Builder shift(Duration shift) {
+            return shift(shift.toNanos());
+        }
+
+        /**
+         * Сдвинуть время на указанный момент, после чего таймер продолжает идти
+         *
+         * @param epochNs количество наносекунд после Unix Epoch
+         * @return этот объект
+         */
+        public Builder resetAt(long epochNs) {
+            return time(Mode.RESET_AT, epochNs);
+        }
+
+        /**
+         * Сдвинуть время на указанный момент, после чего таймер продолжает идти
+         *
+         * @param moment момент времени
+         * @return этот объект
+         */
+        public Builder resetAt(Instant moment) {
+            return resetAt(toEpochNs(moment));
+        }
+
+        private Builder time(Mode mode, long valueNs) {
+            this.mode = mode;
+            this.valueNs = valueNs;
+            return this;
+        }
+
+        /**
+         * Установить такт таймера
+         *
+         * @param tickNs размер такта в наносекундах, больше нуля
+         * @return этот объект
+         */
+        public Builder tick(long tickNs) {
+            if (tickNs <= 0L) {
+                throw new IllegalArgumentException("Такт таймера должен быть положительным (uptk)");
+            }
+            this.tickNs = tickNs;
+            return this;
+        }
+
+        /**
+         * Установить такт таймера
+         *
+         * @param tick размер такта, больше нуля
+         * @return этот объект
+         */
+        public Builder tick(Duration tick) {
+            return tick(tick.toNanos());
+        }
+
+        /**
+         * Изменить скорость таймера. Скорость таймера умножается на числитель и делится на знаменатель.
+         *
+         * @param numerator числитель, больше нуля
+         * @param denominator знаменатель, больше нуля
+         * @return этот объект
+         */
+        public Builder accelerate(long numerator, long denominator) {
+            if (numerator <= 0L || denominator <= 0L) {
+                throw new IllegalArgumentException("Скорость таймера должна быть положительной (upac)");
+            }
+            this.numerator = numerator;
+            this.denominator = denominator;
+            return this;
+        }
+
+        /**
+         * Установить вариант обеспечения уникальности значений
+         *
+         * @param uniqueifier вариант обеспечения уникальности
+         * @return этот объект
+         */
+        public Builder uniqueifier(FakeTimeUniqueifier uniqueifier) {
+            if (uniqueifier == null) {
+                throw new IllegalArgumentException("Не задан вариант обеспечения уникальности (upun)");
+            }
+            this.uniqueifier = uniqueifier;
+            return this;
+        }
+
+        /**
+         * Создает изменение из заданных настроек
+         *
+         * @return новое изменение
+         */
+        public FakeTimeUpdate build() {
+            return new FakeTimeUpdate(this);
+        }
+
+        private static long toEpochNs(Instant moment) {
+            return moment.getEpochSecond() * 1_000_000_000L + moment.getNano();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Текстовый отчет профилировщика мест обращения к таймеру
+ */
+final class CallSiteReport {
+    private CallSiteReport() {}
+
+    /**
+     * Сформировать отчет по собранной статистике
+     *
+     * @return отчет или пустая строка, если статистики нет
+     */
+    static String format() {
+        List<TimeInterceptor.CallSite> sites = TimeInterceptor.getCallSites();
+        if (sites.isEmpty()) {
+            return "";
+        }
+        long total = sites.stream().mapToLong(TimeInterceptor.CallSite::samples).sum();
+        var result = new StringBuilder();
+        result.append(String.format(Locale.ROOT, "Места обращения к таймеру: выборка 1 из %d, попало в выборку %d%n",
+                TimeInterceptor.getCallSiteSampleRate(), total));
+        result.append(String.format(Locale.ROOT, "%7s %12s %7s  %s%n", "доля", "выборка", "потоки", "место"));
+        for (var site : sites) {
+            result.append(String.format(Locale.ROOT, "%6.2f%% %12d %7d  %s%n",
+                    100.0 * site.samples() / total, site.samples(), site.threads(), site.site()));
+        }
+        return result.toString();
+    }
+}
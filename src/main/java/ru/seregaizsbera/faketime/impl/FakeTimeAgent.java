@@ -0,0 +1,34 @@
+package ru.seregaizsbera.faketime.impl;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Точка входа агента. Позволяет установить перехватчики при запуске JVM с опцией {@code -javaagent:faketime.jar}
+ * или через атрибут {@code Launcher-Agent-Class} исполняемого jar-файла. Системные классы переопределяются до
+ * того, как код приложения будет скомпилирован JIT, подключение агента к работающей JVM не требуется,
+ * а {@link ru.seregaizsbera.faketime.FakeTime#install()} сразу возвращает готовый объект.
+ */
+public final class FakeTimeAgent {
+    private FakeTimeAgent() {}
+
+    /**
+     * Вызывается JVM перед методом {@code main} при запуске с опцией {@code -javaagent}
+     * или при наличии атрибута {@code Launcher-Agent-Class}
+     *
+     * @param agentArgs параметры агента, не используются
+     * @param instrumentation инструментирование JVM
+     */
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        FakeTimeInternal.attach(instrumentation);
+    }
+
+    /**
+     * Вызывается JVM при подключении агента к работающей JVM
+     *
+     * @param agentArgs параметры агента, не используются
+     * @param instrumentation инструментирование JVM
+     */
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+        FakeTimeInternal.attach(instrumentation);
+    }
+}
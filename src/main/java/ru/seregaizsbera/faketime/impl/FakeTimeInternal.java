@@ -2,20 +2,36 @@ package ru.seregaizsbera.faketime.impl;
 
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.dynamic.loading.ClassReloadingStrategy;
 import net.bytebuddy.implementation.MethodDelegation;
 import net.bytebuddy.matcher.ElementMatchers;
 import ru.seregaizsbera.faketime.FakeTime;
+import ru.seregaizsbera.faketime.FakeTimeListener;
+import ru.seregaizsbera.faketime.FakeTimeReplayPolicy;
+import ru.seregaizsbera.faketime.FakeTimeScheduledExecutor;
+import ru.seregaizsbera.faketime.FakeTimeScope;
+import ru.seregaizsbera.faketime.FakeTimeSnapshot;
+import ru.seregaizsbera.faketime.FakeTimeTimeline;
 import ru.seregaizsbera.faketime.FakeTimeUniqueifier;
+import ru.seregaizsbera.faketime.FakeTimeUpdate;
 import ru.seregaizsbera.faketime.internal.TimeInterceptor;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
@@ -24,9 +40,43 @@ import java.util.function.Supplier;
  */
 public final class FakeTimeInternal implements FakeTime {
     private static final long NANOS_PER_SEC = 1_000_000_000L;
+    /**
+     * Размер блока записи значений таймера, который поток занимает целиком
+     */
+    private static final int RECORDING_CHUNK_SIZE = 64 * 1024;
     private static final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Действие после {@link #advance(long)}: вернуть перехват таймера, см. {@link #ensureAttached()}
+     */
+    static final int AFTER_ADVANCE_ATTACH = 1;
+    /**
+     * Действие после {@link #advance(long)}: сообщить о продвижении получателям, см. {@link ListenerDispatcher#advanced()}
+     */
+    static final int AFTER_ADVANCE_LISTENERS = 2;
+    /**
+     * Действие после {@link #advance(long)}: выполнить наступившие задачи планировщиков, см. {@link #timeChanged()}
+     */
+    static final int AFTER_ADVANCE_EXECUTORS = 4;
+    /**
+     * Маска действий, которые нужны после продвижения таймера. Пока она равна 0, продвижение сводится
+     * к одной атомарной операции над счетчиком продвижений.
+     */
+    private static final AtomicInteger afterAdvance = new AtomicInteger(AFTER_ADVANCE_ATTACH);
+    /**
+     * Планировщики, которым нужно сообщать об изменениях таймера. Массив заменяется целиком, чтобы
+     * его обход при каждом изменении таймера не создавал объектов.
+     */
+    private static volatile VirtualScheduledExecutor[] executors = new VirtualScheduledExecutor[0];
     private static final Supplier<FakeTime> initial = FakeTimeInternal::initial;
     private static Supplier<FakeTime> getter = initial;
+    private static Instrumentation instrumentation;
+    private static boolean nanoTimeIntercepted = false;
+    private static boolean sleepIntercepted = false;
+    private static boolean profilerReportHooked = false;
+    /**
+     * Перехвачены ли {@link System#currentTimeMillis()} и {@link Clock#currentInstant()}
+     */
+    private static volatile boolean attached = false;
     private FakeTimeInternal() {}
 
     public static FakeTime get() {
@@ -34,6 +84,17 @@ public final class FakeTimeInternal implements FakeTime {
     }
 
     private static FakeTime initial() {
+        return attach(null);
+    }
+
+    /**
+     * Установить перехватчики, если они еще не установлены
+     *
+     * @param agentInstrumentation инструментирование, полученное агентом при запуске JVM, или {@code null},
+     *                             если агент нужно подключить к работающей JVM
+     * @return объект для управления временем
+     */
+    static FakeTime attach(Instrumentation agentInstrumentation) {
         try {
             if (!lock.tryLock(30, TimeUnit.SECONDS)) {
                 throw new IllegalStateException("Не удалось дождаться блокировки (igzv)");
@@ -46,7 +107,7 @@ public final class FakeTimeInternal implements FakeTime {
             if (getter != initial) {
                 return getter.get();
             }
-            var result = install();
+            var result = install(agentInstrumentation != null ? agentInstrumentation : ByteBuddyAgent.install());
             getter = () -> result;
             return result;
         } finally {
@@ -55,114 +116,470 @@ public final class FakeTimeInternal implements FakeTime {
     }
 
     @SuppressWarnings("resource")
-    private static FakeTime install() {
-        Instrumentation instrumentation = ByteBuddyAgent.install();
+    private static FakeTime install(Instrumentation agentInstrumentation) {
+        instrumentation = agentInstrumentation;
         try (var jar = URLJarFile.getJarFile(FakeTimeInternal.class.getResource("/interceptors.jar"))) {
             instrumentation.appendToBootstrapClassLoaderSearch(jar);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        ByteBuddy byteBuddy = new ByteBuddy();
-        byteBuddy.redefine(System.class)
-                .method(ElementMatchers.named("currentTimeMillis").and(ElementMatchers.returns(long.class)))
-                .intercept(MethodDelegation.to(TimeInterceptor.class))
-                .make()
-                .load(System.class.getClassLoader(), ClassReloadingStrategy.fromInstalledAgent());
-        byteBuddy.redefine(Clock.class)
+        attachClock();
+        FakeTimeMXBeanInternal.register();
+        return new FakeTimeInternal();
+    }
+
+    /**
+     * Перехватить {@link System#currentTimeMillis()} и {@link Clock#currentInstant()}. Вызывается под блокировкой.
+     */
+    private static void attachClock() {
+        attached = true;
+        setAfterAdvance(AFTER_ADVANCE_ATTACH, false);
+        redefineSystem();
+        new ByteBuddy().redefine(Clock.class)
                 .method(ElementMatchers.named("currentInstant").and(ElementMatchers.returns(Instant.class)))
-                .intercept(MethodDelegation.to(TimeInterceptor.class))
+                .intercept(delegateTo("currentInstant"))
                 .make()
-                .load(Clock.class.getClassLoader(), ClassReloadingStrategy.fromInstalledAgent());
-        return new FakeTimeInternal();
+                .load(Clock.class.getClassLoader(), ClassReloadingStrategy.of(instrumentation));
+    }
+
+    /**
+     * Вернуть перехват таймера, если он был снят методом {@link #uninstall()}
+     */
+    private static void ensureAttached() {
+        if (attached) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!attached) {
+                attachClock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Переопределить класс {@link System}. Класс каждый раз строится из исходного байт-кода,
+     * поэтому в переопределение включаются все включенные перехваты. Если перехватов нет,
+     * восстанавливается исходный класс.
+     */
+    private static void redefineSystem() {
+        if (!attached && !nanoTimeIntercepted) {
+            try {
+                ClassReloadingStrategy.of(instrumentation).reset(System.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        DynamicType.Builder<System> builder = new ByteBuddy().redefine(System.class);
+        if (attached) {
+            builder = builder
+                    .method(ElementMatchers.named("currentTimeMillis").and(ElementMatchers.returns(long.class)))
+                    .intercept(delegateTo("currentTimeMillis"));
+        }
+        if (nanoTimeIntercepted) {
+            builder = builder
+                    .method(ElementMatchers.named("nanoTime").and(ElementMatchers.returns(long.class)))
+                    .intercept(delegateTo("nanoTime"));
+        }
+        builder.make().load(System.class.getClassLoader(), ClassReloadingStrategy.of(instrumentation));
+    }
+
+    /**
+     * Открыть перехватчикам доступ к внутреннему пакету JDK
+     */
+    private static void exportToInterceptors(String packageName) {
+        Module base = Object.class.getModule();
+        instrumentation.redefineModule(base, Set.of(), Map.of(packageName, Set.of(TimeInterceptor.class.getModule())),
+                Map.of(), Set.of(), Map.of());
+    }
+
+    /**
+     * Делегирование вызова одноименному методу {@link TimeInterceptor}. Имя указывается явно,
+     * поскольку у {@link TimeInterceptor} есть и другие методы с подходящей сигнатурой.
+     */
+    private static MethodDelegation delegateTo(String name) {
+        return MethodDelegation.withDefaultConfiguration()
+                .filter(ElementMatchers.named(name))
+                .to(TimeInterceptor.class);
     }
 
     @Override
     public void reset() {
         TimeInterceptor.reset();
+        timeChanged();
     }
 
     @Override
     public void fix() {
+        ensureAttached();
         TimeInterceptor.fix();
+        timeChanged();
     }
 
     @Override
     public void fixAt(long epochNs) {
+        ensureAttached();
         TimeInterceptor.fixAt(epochNs);
+        timeChanged();
     }
 
     @Override
     public void fixAt(Instant moment) {
-        TimeInterceptor.fixAt(moment.getEpochSecond() * NANOS_PER_SEC + moment.getNano());
+        fixAt(moment.getEpochSecond() * NANOS_PER_SEC + moment.getNano());
     }
 
     @Override
     public void fixAt(long epochSec, int nanoOfSecond) {
-        TimeInterceptor.fixAt(epochSec * NANOS_PER_SEC + nanoOfSecond);
+        fixAt(epochSec * NANOS_PER_SEC + nanoOfSecond);
     }
 
     @Override
     public void shift(long shiftNs) {
+        ensureAttached();
         TimeInterceptor.shift(shiftNs);
+        timeChanged();
     }
 
     @Override
     public void shift(Duration shift) {
-        TimeInterceptor.shift(shift.toNanos());
+        shift(shift.toNanos());
     }
 
     @Override
     public void shift(long shift, TimeUnit unit) {
-        TimeInterceptor.shift(unit.toNanos(shift));
+        shift(unit.toNanos(shift));
+    }
+
+    /**
+     * Продвижение таймера часто вызывается на каждом событии моделирования, поэтому остальные действия
+     * выполняются, только если они нужны: пока перехват установлен, получателей и планировщиков нет,
+     * вызов сводится к атомарному прибавлению к счетчику продвижений и не создает объектов.
+     */
+    @Override
+    public void advance(long nanos) {
+        TimeInterceptor.advance(nanos);
+        advanced();
+    }
+
+    /**
+     * Выполнить действия, которые нужны после продвижения таймера, см. {@link #setAfterAdvance(int, boolean)}
+     */
+    static void advanced() {
+        if (afterAdvance.get() != 0) {
+            ensureAttached();
+            ListenerDispatcher.advanced();
+            timeChanged();
+        }
+    }
+
+    /**
+     * Включить или выключить действие после продвижения таймера
+     *
+     * @param action одно из значений {@code AFTER_ADVANCE_*}
+     * @param needed {@code true} - действие нужно
+     */
+    static void setAfterAdvance(int action, boolean needed) {
+        afterAdvance.getAndUpdate(mask -> needed ? mask | action : mask & ~action);
+    }
+
+    @Override
+    public void advance(Duration delta) {
+        advance(delta.toNanos());
     }
 
     @Override
     public void resetAt(long epochNs) {
+        ensureAttached();
         TimeInterceptor.resetAt(epochNs);
+        timeChanged();
     }
 
     @Override
     public void resetAt(Instant moment) {
-        TimeInterceptor.resetAt(moment.getEpochSecond() * NANOS_PER_SEC + moment.getNano());
+        resetAt(moment.getEpochSecond() * NANOS_PER_SEC + moment.getNano());
     }
 
     @Override
     public void resetAt(long epochSec, int nanoOfSecond) {
-        TimeInterceptor.resetAt(epochSec * NANOS_PER_SEC + nanoOfSecond);
+        resetAt(epochSec * NANOS_PER_SEC + nanoOfSecond);
     }
 
     @Override
     public void setTick(long tickNs) {
+        ensureAttached();
         TimeInterceptor.setTick(tickNs);
+        timeChanged();
     }
 
     @Override
     public void setTick(Duration tick) {
-        TimeInterceptor.setTick(tick.toNanos());
+        setTick(tick.toNanos());
     }
 
     @Override
     public void resetTick() {
-        TimeInterceptor.setTick(1L);
+        if (attached) {
+            setTick(1L);
+        }
     }
 
     @Override
     public void setAccelerator(long numerator, long denominator) {
+        ensureAttached();
         TimeInterceptor.setAccelerator(numerator, denominator);
+        timeChanged();
     }
 
     @Override
     public void resetAccelerator() {
-        TimeInterceptor.setAccelerator(1L, 1L);
+        if (attached) {
+            setAccelerator(1L, 1L);
+        }
     }
 
     @Override
     public void setUniqueifier(FakeTimeUniqueifier uniqueifier) {
+        ensureAttached();
         TimeInterceptor.setUniqueifier(TimeInterceptor.Uniqueifier.valueOf(uniqueifier.name()));
     }
 
+    @Override
+    public void update(FakeTimeUpdate update) {
+        ensureAttached();
+        var target = new TimeInterceptor.Update();
+        switch (update.mode()) {
+            case FIX -> target.fix();
+            case FIX_AT -> target.fixAt(update.valueNs());
+            case SHIFT -> target.shift(update.valueNs());
+            case RESET_AT -> target.resetAt(update.valueNs());
+            case KEEP -> {
+                // время не изменяется
+            }
+        }
+        if (update.tickNs() != 0L) {
+            target.tick(update.tickNs());
+        }
+        if (update.numerator() != 0L) {
+            target.accelerator(update.numerator(), update.denominator());
+        }
+        if (update.uniqueifier() != null) {
+            target.uniqueifier(TimeInterceptor.Uniqueifier.valueOf(update.uniqueifier().name()));
+        }
+        TimeInterceptor.update(target);
+        timeChanged();
+    }
+
+    @Override
+    public void addListener(FakeTimeListener listener) {
+        ListenerDispatcher.add(listener);
+    }
+
+    @Override
+    public void removeListener(FakeTimeListener listener) {
+        ListenerDispatcher.remove(listener);
+    }
+
     @Override
     public void resetUniqueifier() {
-        setUniqueifier(FakeTimeUniqueifier.NOTHING);
+        if (attached) {
+            setUniqueifier(FakeTimeUniqueifier.NOTHING);
+        }
+    }
+
+    @Override
+    public FakeTimeSnapshot push() {
+        ensureAttached();
+        return new FakeTimeSnapshotInternal(TimeInterceptor.push());
+    }
+
+    @Override
+    public FakeTimeScope openScope() {
+        ensureAttached();
+        return new FakeTimeScopeInternal(TimeInterceptor.openScope());
+    }
+
+    @Override
+    public FakeTimeScheduledExecutor newScheduledExecutor() {
+        var executor = new VirtualScheduledExecutor(TimeInterceptor.currentScope());
+        synchronized (FakeTimeInternal.class) {
+            var registered = Arrays.copyOf(executors, executors.length + 1);
+            registered[registered.length - 1] = executor;
+            executors = registered;
+            setAfterAdvance(AFTER_ADVANCE_EXECUTORS, true);
+        }
+        return executor;
+    }
+
+    /**
+     * Выполнить задачи планировщиков, срок которых наступил после изменения таймера
+     */
+    static void timeChanged() {
+        for (var executor : executors) {
+            executor.timeChanged();
+        }
+    }
+
+    /**
+     * Перестать оповещать завершенный планировщик об изменениях таймера
+     */
+    static void unregister(VirtualScheduledExecutor executor) {
+        synchronized (FakeTimeInternal.class) {
+            var registered = Arrays.stream(executors).filter(e -> e != executor).toArray(VirtualScheduledExecutor[]::new);
+            executors = registered;
+            setAfterAdvance(AFTER_ADVANCE_EXECUTORS, registered.length != 0);
+        }
+    }
+
+    @Override
+    public void uninstall() {
+        lock.lock();
+        try {
+            if (!attached) {
+                return;
+            }
+            TimeInterceptor.reset();
+            attached = false;
+            setAfterAdvance(AFTER_ADVANCE_ATTACH, true);
+            redefineSystem();
+            ClassReloadingStrategy.of(instrumentation).reset(Clock.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Duration getUniqueifierLead() {
+        return Duration.ofNanos(TimeInterceptor.getUniqueifierLeadNs());
+    }
+
+    @Override
+    public void setClockReadSampling(Duration period) {
+        TimeInterceptor.setClockReadSampling(period.toNanos());
+    }
+
+    @Override
+    public void startCallSiteProfiling(int sampleRate) {
+        lock.lock();
+        try {
+            if (!profilerReportHooked) {
+                profilerReportHooked = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(CallSiteReport.format()),
+                        "faketime-call-site-report"));
+            }
+            TimeInterceptor.startCallSiteProfiling(sampleRate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void stopCallSiteProfiling() {
+        TimeInterceptor.stopCallSiteProfiling();
+    }
+
+    @Override
+    public String getCallSiteReport() {
+        return CallSiteReport.format();
+    }
+
+    @Override
+    public void startRecording(Path file, long capacity) {
+        int chunkCount = (int) Math.min(Integer.MAX_VALUE / RECORDING_CHUNK_SIZE - 1L, Math.max(1L, capacity / RECORDING_CHUNK_SIZE));
+        TimeInterceptor.startRecording(file, RECORDING_CHUNK_SIZE, chunkCount);
+    }
+
+    @Override
+    public void stopRecording() {
+        TimeInterceptor.stopRecording();
+    }
+
+    @Override
+    public void program(FakeTimeTimeline timeline) {
+        ensureAttached();
+        List<TimeInterceptor.Segment> segments = new ArrayList<>();
+        for (var segment : timeline.segments()) {
+            Instant moment = segment.moment();
+            segments.add(new TimeInterceptor.Segment(segment.at().toNanos(), moment != null,
+                    moment == null ? 0L : moment.getEpochSecond() * NANOS_PER_SEC + moment.getNano(),
+                    segment.numerator(), segment.denominator()));
+        }
+        TimeInterceptor.program(segments);
+        timeChanged();
+    }
+
+    @Override
+    public void slew(Duration shift, Duration duration) {
+        ensureAttached();
+        TimeInterceptor.slew(shift.toNanos(), duration.toNanos());
+        timeChanged();
+    }
+
+    @Override
+    public void setMonotonic(boolean enabled) {
+        ensureAttached();
+        TimeInterceptor.setMonotonic(enabled);
+        timeChanged();
+    }
+
+    @Override
+    public void setCoarse(Duration period) {
+        ensureAttached();
+        TimeInterceptor.setCoarse(period.toNanos());
+        timeChanged();
+    }
+
+    @Override
+    public void replay(Path file, boolean perThread, FakeTimeReplayPolicy policy) {
+        ensureAttached();
+        TimeInterceptor.replay(file, perThread, TimeInterceptor.ReplayPolicy.valueOf(policy.name()));
+        timeChanged();
+    }
+
+    @Override
+    public void interceptNanoTime() {
+        lock.lock();
+        try {
+            if (nanoTimeIntercepted) {
+                return;
+            }
+            exportToInterceptors("jdk.internal.perf");
+            TimeInterceptor.enableNanoTime();
+            nanoTimeIntercepted = true;
+            redefineSystem();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void interceptSleep() {
+        lock.lock();
+        try {
+            if (sleepIntercepted) {
+                return;
+            }
+            interceptNanoTime();
+            sleepIntercepted = true;
+            ByteBuddy byteBuddy = new ByteBuddy();
+            byteBuddy.redefine(Thread.class)
+                    .method(ElementMatchers.named("sleep").and(ElementMatchers.takesArguments(long.class)))
+                    .intercept(delegateTo("sleep"))
+                    .make()
+                    .load(Thread.class.getClassLoader(), ClassReloadingStrategy.of(instrumentation));
+            byteBuddy.redefine(LockSupport.class)
+                    .method(ElementMatchers.named("parkNanos"))
+                    .intercept(delegateTo("parkNanos"))
+                    .method(ElementMatchers.named("parkUntil"))
+                    .intercept(delegateTo("parkUntil"))
+                    .make()
+                    .load(LockSupport.class.getClassLoader(), ClassReloadingStrategy.of(instrumentation));
+        } finally {
+            lock.unlock();
+        }
     }
 }
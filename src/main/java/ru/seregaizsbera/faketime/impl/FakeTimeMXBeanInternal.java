@@ -0,0 +1,125 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.FakeTimeMXBean;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Реализация {@link FakeTimeMXBean}. Значения читаются из {@link TimeInterceptor} при каждом обращении.
+ * Пока к счетчикам не обращались, объект ничего не включает, и регистрация не замедляет обращения к таймеру.
+ */
+final class FakeTimeMXBeanInternal implements FakeTimeMXBean {
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    private FakeTimeMXBeanInternal() {}
+
+    /**
+     * Зарегистрировать объект в платформенном {@link javax.management.MBeanServer}. Счетчики не включаются.
+     * Если объект уже зарегистрирован, например, библиотекой из другого загрузчика классов, ничего не делает.
+     */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new FakeTimeMXBeanInternal(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // ignore
+        } catch (JMException e) {
+            throw new IllegalStateException("Не удалось зарегистрировать MBean (mbrg)", e);
+        }
+    }
+
+    @Override
+    public String getMode() {
+        var parameters = TimeInterceptor.getParameters();
+        if (parameters.frozen()) {
+            return "FIXED";
+        }
+        if (parameters.replay()) {
+            return "REPLAY";
+        }
+        if (parameters.programmed()) {
+            return "PROGRAM";
+        }
+        if (parameters.slewing()) {
+            return "SLEWING";
+        }
+        if (parameters.shiftNs() == 0L && parameters.tickNs() == 1L
+                && parameters.acceleratorNumerator() == parameters.acceleratorDenominator()
+                && parameters.uniqueifier() == TimeInterceptor.Uniqueifier.NOTHING) {
+            return "SYSTEM";
+        }
+        return "SHIFTED";
+    }
+
+    @Override
+    public long getShiftNanos() {
+        return TimeInterceptor.getParameters().shiftNs();
+    }
+
+    @Override
+    public long getTickNanos() {
+        return TimeInterceptor.getParameters().tickNs();
+    }
+
+    @Override
+    public String getAccelerator() {
+        var parameters = TimeInterceptor.getParameters();
+        return parameters.acceleratorNumerator() + "/" + parameters.acceleratorDenominator();
+    }
+
+    @Override
+    public String getUniqueifier() {
+        return TimeInterceptor.getParameters().uniqueifier().name();
+    }
+
+    @Override
+    public long getOffsetMillis() {
+        return TimeInterceptor.getOffsetNs() / NANOS_PER_MS;
+    }
+
+    @Override
+    public long getUniqueifierLeadNanos() {
+        return TimeInterceptor.getUniqueifierLeadNs();
+    }
+
+    @Override
+    public void enableStatistics() {
+        TimeInterceptor.enableStatistics();
+    }
+
+    /**
+     * Значения счетчиков. При первом обращении счетчики включаются, поэтому они ведутся с этого момента.
+     */
+    private static TimeInterceptor.Statistics statistics() {
+        TimeInterceptor.enableStatistics();
+        return TimeInterceptor.getStatistics();
+    }
+
+    @Override
+    public long getCurrentTimeMillisCalls() {
+        return statistics().currentTimeMillisCalls();
+    }
+
+    @Override
+    public long getCurrentInstantCalls() {
+        return statistics().currentInstantCalls();
+    }
+
+    @Override
+    public long getUniqueifierCollisions() {
+        return statistics().uniqueifierCollisions();
+    }
+
+    @Override
+    public long getUniqueifierCasRetries() {
+        return statistics().casRetries();
+    }
+
+    @Override
+    public long getUniqueifierLockContentions() {
+        return statistics().lockContentions();
+    }
+}
@@ -0,0 +1,49 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.FakeTimeScope;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Реализация {@link FakeTimeScope}
+ *
+ * @param scope область действия таймера в перехватчике
+ */
+record FakeTimeScopeInternal(TimeInterceptor.Scope scope) implements FakeTimeScope {
+
+    @Override
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            var previous = scope.attach();
+            try {
+                task.run();
+            } finally {
+                TimeInterceptor.Scope.restore(previous);
+            }
+        };
+    }
+
+    @Override
+    public <V> Callable<V> wrap(Callable<V> task) {
+        return () -> {
+            var previous = scope.attach();
+            try {
+                return task.call();
+            } finally {
+                TimeInterceptor.Scope.restore(previous);
+            }
+        };
+    }
+
+    @Override
+    public Executor wrap(Executor executor) {
+        return command -> executor.execute(wrap(command));
+    }
+
+    @Override
+    public void close() {
+        scope.close();
+    }
+}
@@ -0,0 +1,18 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.FakeTimeSnapshot;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+/**
+ * Реализация {@link FakeTimeSnapshot}
+ *
+ * @param snapshot сохраненное состояние в перехватчике
+ */
+record FakeTimeSnapshotInternal(TimeInterceptor.Snapshot snapshot) implements FakeTimeSnapshot {
+
+    @Override
+    public void close() {
+        snapshot.close();
+        FakeTimeInternal.timeChanged();
+    }
+}
@@ -0,0 +1,136 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.FakeTimeChange;
+import ru.seregaizsbera.faketime.FakeTimeListener;
+import ru.seregaizsbera.faketime.FakeTimeUniqueifier;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Рассылка сообщений об изменениях таймера получателям {@link FakeTimeListener}. Поток, изменивший таймер,
+ * только объединяет изменение с еще не разосланными атомарной операцией и будит поток рассылки,
+ * поэтому медленные получатели не задерживают изменения таймера. О продвижениях {@link TimeInterceptor#advance(long)}
+ * поток, продвинувший таймер, только взводит флаг, а переход с суммой продвижений поток рассылки забирает
+ * из счетчика методом {@link TimeInterceptor#takeAdvance()}, поэтому продвижение не создает объектов.
+ * Поток рассылки создается при добавлении первого получателя и не наследует область таймера создавшего его потока.
+ */
+final class ListenerDispatcher {
+    private static final List<FakeTimeListener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Изменения, о которых еще не сообщено, {@code null} - таких нет
+     */
+    private static final AtomicReference<Pending> pending = new AtomicReference<>();
+    /**
+     * Таймер продвигался после того, как поток рассылки последний раз забрал продвижения
+     */
+    private static final AtomicBoolean advancePending = new AtomicBoolean();
+    private static Thread dispatcher = null;
+
+    private ListenerDispatcher() {}
+
+    /**
+     * Добавить получателя
+     */
+    static synchronized void add(FakeTimeListener listener) {
+        if (dispatcher == null) {
+            dispatcher = new Thread(null, ListenerDispatcher::run, "faketime-listeners", 0L, false);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+        listeners.add(listener);
+        TimeInterceptor.setListener(ListenerDispatcher::enqueue);
+        FakeTimeInternal.setAfterAdvance(FakeTimeInternal.AFTER_ADVANCE_LISTENERS, true);
+    }
+
+    /**
+     * Удалить получателя. Когда получателей не остается, таймер перестает сообщать об изменениях.
+     */
+    static synchronized void remove(FakeTimeListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+            FakeTimeInternal.setAfterAdvance(FakeTimeInternal.AFTER_ADVANCE_LISTENERS, false);
+            TimeInterceptor.setListener(null);
+        }
+    }
+
+    /**
+     * Принять изменение от таймера. Изменения в областях потоков не рассылаются.
+     */
+    private static void enqueue(TimeInterceptor.Transition transition) {
+        if (transition.scoped()) {
+            return;
+        }
+        pending.accumulateAndGet(new Pending(transition.previous(), transition.next(), transition.jumpNs(), 1),
+                (earlier, later) -> earlier == null ? later : earlier.merge(later));
+        LockSupport.unpark(dispatcher);
+    }
+
+    /**
+     * Сообщить, что таймер продвинулся. Пока поток рассылки не забрал прежние продвижения, ничего не делает.
+     */
+    static void advanced() {
+        if (!advancePending.get() && advancePending.compareAndSet(false, true)) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private static void run() {
+        Thread thread = Thread.currentThread();
+        while (true) {
+            Pending change = takeAdvance();
+            Pending later = pending.getAndSet(null);
+            if (later != null) {
+                change = change == null ? later : change.merge(later);
+            }
+            if (change == null) {
+                LockSupport.park(ListenerDispatcher.class);
+                continue;
+            }
+            var event = new FakeTimeChange(toParameters(change.previous()), toParameters(change.next()),
+                    Duration.ofNanos(change.jumpNs()), change.count());
+            for (var listener : listeners) {
+                try {
+                    listener.timeChanged(event);
+                } catch (RuntimeException e) {
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Забрать продвижения таймера, о которых еще не сообщено
+     */
+    private static Pending takeAdvance() {
+        if (!advancePending.getAndSet(false)) {
+            return null;
+        }
+        var transition = TimeInterceptor.takeAdvance();
+        return transition == null ? null : new Pending(transition.previous(), transition.next(), transition.jumpNs(), 1);
+    }
+
+    private static FakeTimeChange.Parameters toParameters(TimeInterceptor.Parameters parameters) {
+        return new FakeTimeChange.Parameters(parameters.frozen(), Duration.ofNanos(parameters.shiftNs()),
+                Duration.ofNanos(parameters.tickNs()), parameters.acceleratorNumerator(), parameters.acceleratorDenominator(),
+                FakeTimeUniqueifier.valueOf(parameters.uniqueifier().name()));
+    }
+
+    /**
+     * Объединенные изменения, о которых еще не сообщено
+     */
+    private record Pending(TimeInterceptor.Parameters previous, TimeInterceptor.Parameters next, long jumpNs, int count) {
+        Pending merge(Pending later) {
+            long sumNs = jumpNs + later.jumpNs;
+            if (((jumpNs ^ sumNs) & (later.jumpNs ^ sumNs)) < 0L) {
+                sumNs = jumpNs < 0L ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            return new Pending(previous, later.next, sumNs, (int) Math.min(Integer.MAX_VALUE, (long) count + later.count));
+        }
+    }
+}
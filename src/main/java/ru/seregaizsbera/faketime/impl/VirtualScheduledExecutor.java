@@ -0,0 +1,415 @@
+package ru.seregaizsbera.faketime.impl;
+
+import ru.seregaizsbera.faketime.FakeTimeScheduledExecutor;
+import ru.seregaizsbera.faketime.internal.TimeInterceptor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Реализация {@link FakeTimeScheduledExecutor}. Задачи хранятся в очереди с приоритетом по сроку,
+ * при равных сроках — по порядку планирования. Сроки хранятся в наносекундах после Unix Epoch по таймеру
+ * области, в которой находился поток, создавший планировщик, независимо от того, из какого потока
+ * планировщик вызывается.
+ * <p>
+ * Изменение таймера сообщается всем планировщикам в потоке, который его изменил, в том числе из задачи
+ * другого планировщика. Поэтому при изменении таймера поток не ждет блокировку выполнения задач:
+ * если задачи выполняет другой поток, наступившие задачи после своих выполнит он. Иначе два планировщика,
+ * задачи которых изменяют таймер, могли бы ждать друг друга.
+ */
+final class VirtualScheduledExecutor extends AbstractExecutorService implements FakeTimeScheduledExecutor {
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private final TimeInterceptor.Scope scope;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition terminated = lock.newCondition();
+    private final ReentrantLock runLock = new ReentrantLock();
+    /**
+     * Есть задачи, срок которых мог наступить, а выполнить их должен поток, который освобождает {@link #runLock}
+     */
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long sequence = 0L;
+    private boolean shutdown = false;
+    private boolean running = false;
+    /**
+     * Срок первой задачи в очереди или {@link Long#MAX_VALUE}, если очередь пуста. Позволяет при изменении
+     * таймера не захватывать блокировки, пока срок не наступил. Изменяется под блокировкой {@link #lock}.
+     */
+    private volatile long nextDeadlineNs = Long.MAX_VALUE;
+
+    /**
+     * @param scope область, по таймеру которой отсчитываются сроки задач
+     */
+    VirtualScheduledExecutor(TimeInterceptor.Scope scope) {
+        this.scope = scope;
+    }
+
+    private long now() {
+        return scope.currentEpochNs();
+    }
+
+    /**
+     * Сложение с насыщением, чтобы очень большие задержки не приводили к сроку в прошлом
+     */
+    private static long deadline(long fromNs, long delayNs) {
+        long result = fromNs + delayNs;
+        if (((fromNs ^ result) & (delayNs ^ result)) < 0) {
+            return delayNs > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return result;
+    }
+
+    /**
+     * Выполнить задачи, срок которых наступил, если такие могут быть. Вызывается при каждом изменении таймера.
+     */
+    void timeChanged() {
+        if (nextDeadlineNs <= now()) {
+            pending.set(true);
+            drain();
+        }
+    }
+
+    @Override
+    public void runUntilIdle() {
+        if (runLock.isHeldByCurrentThread()) {
+            return;
+        }
+        runLock.lock();
+        runDue();
+        drain();
+    }
+
+    /**
+     * Выполнить наступившие задачи, если их не выполняет другой поток. Поток, который выполняет задачи,
+     * после освобождения блокировки проверяет {@link #pending} снова, поэтому задачи не остаются невыполненными.
+     */
+    private void drain() {
+        while (pending.get() && !runLock.isHeldByCurrentThread() && runLock.tryLock()) {
+            runDue();
+        }
+    }
+
+    /**
+     * Выполнить задачи, срок которых наступил. Вызывается под блокировкой {@link #runLock} и освобождает ее.
+     */
+    private void runDue() {
+        try {
+            pending.set(false);
+            Task<?> task;
+            while ((task = pollDue()) != null) {
+                task.run();
+            }
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    /**
+     * Извлечь из очереди задачу, срок которой наступил
+     *
+     * @return задача или {@code null}, если таких задач нет
+     */
+    private Task<?> pollDue() {
+        lock.lock();
+        try {
+            Task<?> head = queue.peek();
+            if (head == null || head.deadlineNs > now()) {
+                running = false;
+                checkTerminated();
+                return null;
+            }
+            running = true;
+            Task<?> result = queue.poll();
+            updateNextDeadline();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean advanceToNextDeadline() {
+        long deadlineNs;
+        lock.lock();
+        try {
+            Task<?> head = queue.peek();
+            if (head == null) {
+                return false;
+            }
+            deadlineNs = head.deadlineNs;
+        } finally {
+            lock.unlock();
+        }
+        long nowNs = now();
+        while (deadlineNs > nowNs) {
+            // С крупным тактом таймер после сдвига может остаться на такт раньше срока
+            scope.advance(deadlineNs - nowNs);
+            FakeTimeInternal.advanced();
+            long nextNs = now();
+            if (nextNs <= nowNs) {
+                break;
+            }
+            nowNs = nextNs;
+        }
+        runUntilIdle();
+        return true;
+    }
+
+    @Override
+    public Optional<Instant> getNextDeadline() {
+        lock.lock();
+        try {
+            Task<?> head = queue.peek();
+            if (head == null) {
+                return Optional.empty();
+            }
+            return Optional.of(Instant.ofEpochSecond(Math.floorDiv(head.deadlineNs, NANOS_PER_SEC),
+                    Math.floorMod(head.deadlineNs, NANOS_PER_SEC)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(Executors.callable(command, null), unit.toNanos(delay), 0L));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(callable, unit.toNanos(delay), 0L));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0L) {
+            throw new IllegalArgumentException("Период должен быть положительным (vsfr)");
+        }
+        return enqueue(new Task<>(Executors.callable(command, null), unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0L) {
+            throw new IllegalArgumentException("Задержка должна быть положительной (vsfd)");
+        }
+        return enqueue(new Task<>(Executors.callable(command, null), unit.toNanos(initialDelay), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    private <V> Task<V> enqueue(Task<V> task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Планировщик остановлен (vsrj)");
+            }
+            task.sequenceNumber = sequence++;
+            queue.add(task);
+            updateNextDeadline();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    /**
+     * Вернуть периодическую задачу в очередь после очередного выполнения. Новый порядковый номер
+     * ставит ее после задач с тем же сроком, запланированных раньше.
+     */
+    private void requeue(Task<?> task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                task.cancel(false);
+            } else {
+                task.sequenceNumber = sequence++;
+                queue.add(task);
+                updateNextDeadline();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(Task<?> task) {
+        lock.lock();
+        try {
+            queue.remove(task);
+            updateNextDeadline();
+            checkTerminated();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        List<Task<?>> periodic = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            queue.removeIf(task -> task.isPeriodic() && periodic.add(task));
+            updateNextDeadline();
+            checkTerminated();
+        } finally {
+            lock.unlock();
+        }
+        periodic.forEach(task -> task.cancel(false));
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> result = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            // отмененная задача может еще оставаться в очереди, пока cancel() ждет блокировку, чтобы ее удалить
+            queue.stream().filter(task -> !task.isCancelled()).forEach(result::add);
+            queue.clear();
+            updateNextDeadline();
+            checkTerminated();
+        } finally {
+            lock.unlock();
+        }
+        result.forEach(task -> ((Task<?>) task).cancel(false));
+        return result;
+    }
+
+    /**
+     * Запомнить срок первой задачи в очереди. Вызывается под блокировкой.
+     */
+    private void updateNextDeadline() {
+        Task<?> head = queue.peek();
+        nextDeadlineNs = head == null ? Long.MAX_VALUE : head.deadlineNs;
+    }
+
+    /**
+     * Проверить завершение работы. Вызывается под блокировкой.
+     */
+    private void checkTerminated() {
+        if (isTerminatedLocked()) {
+            FakeTimeInternal.unregister(this);
+            terminated.signalAll();
+        }
+    }
+
+    private boolean isTerminatedLocked() {
+        return shutdown && !running && queue.isEmpty();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        lock.lock();
+        try {
+            return isTerminatedLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ожидание завершения измеряется в реальном времени, поскольку задачи сами по себе не выполняются
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!isTerminatedLocked()) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Задача планировщика. Положительный период означает выполнение с фиксированной частотой,
+     * отрицательный — с фиксированной задержкой между выполнениями, нулевой — однократное выполнение.
+     */
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final long periodNs;
+        private long deadlineNs;
+        private long sequenceNumber;
+
+        Task(Callable<V> callable, long delayNs, long periodNs) {
+            super(callable);
+            this.periodNs = periodNs;
+            this.deadlineNs = deadline(now(), Math.max(0L, delayNs));
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return periodNs != 0L;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNs - now(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof Task<?> task) {
+                int result = Long.compare(deadlineNs, task.deadlineNs);
+                return result != 0 ? result : Long.compare(sequenceNumber, task.sequenceNumber);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                deadlineNs = periodNs > 0L ? deadline(deadlineNs, periodNs) : deadline(now(), -periodNs);
+                requeue(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            if (result) {
+                remove(this);
+            }
+            return result;
+        }
+    }
+}
@@ -2,15 +2,31 @@ package ru.seregaizsbera.faketime;
 
 import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class FakeTimeTest {
 
@@ -48,4 +64,398 @@ class FakeTimeTest {
             fakeTime.reset();
         }
     }
+
+    @Test
+    void testScheduledExecutor() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2025, 4, 16, 13, 35, 45, 0, ZoneOffset.UTC).toInstant();
+        FakeTimeScheduledExecutor executor = fakeTime.newScheduledExecutor();
+        try {
+            fakeTime.fixAt(instant);
+            List<String> log = new ArrayList<>();
+            executor.schedule(() -> log.add("b"), 2L, TimeUnit.HOURS);
+            ScheduledFuture<Instant> a = executor.schedule(Instant::now, 1L, TimeUnit.HOURS);
+            executor.scheduleAtFixedRate(() -> log.add("p"), 0L, 30L, TimeUnit.MINUTES);
+            executor.runUntilIdle();
+            assertThat(log).containsExactly("p");
+            assertThat(executor.getNextDeadline()).contains(instant.plus(Duration.ofMinutes(30L)));
+            fakeTime.fixAt(instant.plus(Duration.ofHours(1L)));
+            assertThat(a.get()).isEqualTo(instant.plus(Duration.ofHours(1L)));
+            assertThat(log).containsExactly("p", "p", "p");
+            assertThat(executor.advanceToNextDeadline()).isTrue();
+            assertThat(Instant.now()).isEqualTo(instant.plus(Duration.ofMinutes(90L)));
+            assertThat(executor.advanceToNextDeadline()).isTrue();
+            assertThat(log).containsExactly("p", "p", "p", "p", "b", "p");
+            fakeTime.resetAt(instant);
+            fakeTime.setTick(Duration.ofMinutes(1L));
+            executor.schedule(() -> log.add("c"), 1L, TimeUnit.HOURS);
+            assertThat(executor.advanceToNextDeadline()).isTrue();
+            assertThat(log).containsExactly("p", "p", "p", "p", "b", "p", "c");
+            assertThat(Instant.now()).isAfterOrEqualTo(instant.plus(Duration.ofHours(1L)));
+            assertThat(Instant.now().getEpochSecond() % 60L).isZero();
+            executor.shutdown();
+            assertThat(executor.awaitTermination(1L, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testScopedScheduledExecutor() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2025, 4, 16, 13, 35, 45, 0, ZoneOffset.UTC).toInstant();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try (FakeTimeScope ignored = fakeTime.openScope()) {
+            fakeTime.fixAt(instant);
+            FakeTimeScheduledExecutor executor = fakeTime.newScheduledExecutor();
+            try {
+                ScheduledFuture<Instant> task = executor.schedule(Instant::now, 1L, TimeUnit.HOURS);
+                assertThat(pool.submit(() -> task.getDelay(TimeUnit.MINUTES)).get()).isEqualTo(60L);
+                assertThat(pool.submit(executor::advanceToNextDeadline).get()).isTrue();
+                assertThat(task.isDone()).isTrue();
+                assertThat(Instant.now()).isEqualTo(instant.plus(Duration.ofHours(1L)));
+                ScheduledFuture<?> cancelled = executor.schedule(() -> { }, 1L, TimeUnit.HOURS);
+                executor.schedule(() -> { }, 2L, TimeUnit.HOURS);
+                cancelled.cancel(false);
+                assertThat(executor.shutdownNow()).hasSize(1);
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            pool.shutdown();
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testScope() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        fakeTime.reset();
+        try (FakeTimeScope scope = fakeTime.openScope()) {
+            fakeTime.fixAt(instant);
+            assertThat(Instant.now()).isEqualTo(instant);
+            FutureTask<Instant> child = new FutureTask<>(Instant::now);
+            new Thread(child).start();
+            assertThat(child.get()).isEqualTo(instant);
+            assertThat(CompletableFuture.supplyAsync(Instant::now, scope.wrap(ForkJoinPool.commonPool())).get())
+                    .isEqualTo(instant);
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            try {
+                assertThat(pool.submit(Instant::now).get()).isAfter(instant.plus(Duration.ofDays(365L)));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        assertThat(Instant.now()).isAfter(instant.plus(Duration.ofDays(365L)));
+    }
+
+    @Test
+    void testUninstall() {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.fixAt(instant);
+            assertThat(Instant.now()).isEqualTo(instant);
+            fakeTime.uninstall();
+            fakeTime.uninstall();
+            assertThat(Instant.now()).isAfter(instant.plus(Duration.ofDays(365L)));
+            fakeTime.resetTick();
+            fakeTime.fixAt(instant);
+            assertThat(Instant.now()).isEqualTo(instant);
+            assertThat(System.currentTimeMillis()).isEqualTo(instant.toEpochMilli());
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testMXBean() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        try {
+            fakeTime.fixAt(OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant());
+            FakeTimeMXBean bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                    new ObjectName(FakeTimeMXBean.OBJECT_NAME), FakeTimeMXBean.class);
+            long calls = bean.getCurrentTimeMillisCalls();
+            assertThat(System.currentTimeMillis()).isPositive();
+            assertThat(bean.getCurrentTimeMillisCalls()).isGreaterThan(calls);
+            assertThat(bean.getMode()).isEqualTo("FIXED");
+            assertThat(bean.getOffsetMillis()).isNegative();
+            assertThat(bean.getAccelerator()).isEqualTo("1/1");
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testCallSiteProfiling() {
+        FakeTime fakeTime = FakeTime.install();
+        fakeTime.startCallSiteProfiling(1);
+        try {
+            IntStream.range(0, 10).forEach(i -> assertThat(Instant.now()).isNotNull());
+        } finally {
+            fakeTime.stopCallSiteProfiling();
+        }
+        assertThat(fakeTime.getCallSiteReport()).contains("FakeTimeTest.lambda$testCallSiteProfiling");
+    }
+
+    @Test
+    void testRecording(@TempDir Path directory) throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Path file = directory.resolve("timestamps.bin");
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.fixAt(instant);
+            fakeTime.startRecording(file, 1024L * 1024L);
+            assertThat(Instant.now()).isEqualTo(instant);
+            assertThat(System.currentTimeMillis()).isEqualTo(instant.toEpochMilli());
+        } finally {
+            fakeTime.stopRecording();
+            fakeTime.reset();
+        }
+        List<FakeTimeRecording.Entry> entries = new ArrayList<>();
+        long threadId = Thread.currentThread().getId();
+        FakeTimeRecording.forEach(file, entry -> {
+            if (entry.threadId() == threadId) {
+                entries.add(entry);
+            }
+        });
+        assertThat(entries).hasSize(2);
+        assertThat(entries).allSatisfy(entry -> assertThat(entry.epochNs()).isEqualTo(instant.toEpochMilli() * 1_000_000L));
+        assertThat(entries.get(0).instant()).isTrue();
+        assertThat(entries.get(1).instant()).isFalse();
+    }
+
+    @Test
+    void testAcceleratorRange() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Instant limit = Instant.ofEpochSecond(0L, Long.MAX_VALUE);
+        try {
+            fakeTime.setAccelerator(Long.MAX_VALUE, 1L);
+            Thread.sleep(10L);
+            assertThat(Instant.now()).isAfter(limit);
+            assertThat(System.currentTimeMillis()).isGreaterThan(limit.toEpochMilli());
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testProgram() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.program(FakeTimeTimeline.builder()
+                    .jumpTo(Duration.ZERO, instant)
+                    .freeze(Duration.ZERO)
+                    .accelerate(Duration.ofMillis(50L), 3600L, 1L)
+                    .build());
+            assertThat(Instant.now()).isEqualTo(instant);
+            assertThatThrownBy(() -> fakeTime.setTick(Duration.ofSeconds(1L))).isInstanceOf(IllegalStateException.class);
+            Thread.sleep(100L);
+            assertThat(Instant.now()).isAfter(instant.plusSeconds(60L));
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testAdvance() {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.fixAt(instant);
+            IntStream.range(0, 1000).parallel().forEach(i -> fakeTime.advance(Duration.ofMillis(1L)));
+            assertThat(Instant.now()).isEqualTo(instant.plusSeconds(1L));
+            fakeTime.advance(-1L);
+            assertThat(System.currentTimeMillis()).isEqualTo(instant.plusSeconds(1L).toEpochMilli());
+            try (FakeTimeScope scope = fakeTime.openScope()) {
+                fakeTime.advance(Duration.ofHours(1L));
+                assertThat(Instant.now()).isEqualTo(instant.plusSeconds(3601L));
+            }
+            assertThat(Instant.now()).isEqualTo(instant.plusSeconds(1L));
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testAdvanceAllocation() {
+        FakeTime fakeTime = FakeTime.install();
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        FakeTimeListener listener = change -> { };
+        FakeTimeScheduledExecutor executor = fakeTime.newScheduledExecutor();
+        try {
+            fakeTime.fix();
+            fakeTime.addListener(listener);
+            executor.schedule(() -> { }, 1L, TimeUnit.DAYS);
+            for (int i = 0; i < 100_000; i++) {
+                fakeTime.advance(1L);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 1_000_000; i++) {
+                fakeTime.advance(1L);
+            }
+            assertThat(threads.getThreadAllocatedBytes(threadId) - before).isLessThan(1024L);
+        } finally {
+            executor.shutdownNow();
+            fakeTime.removeListener(listener);
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testUpdate() {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2021, 6, 30, 23, 59, 59, 123_456_789, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.update(FakeTimeUpdate.builder()
+                    .fixAt(instant)
+                    .tick(Duration.ofMillis(10L))
+                    .uniqueifier(FakeTimeUniqueifier.UNIQUE_PER_THREAD)
+                    .build());
+            assertThat(Instant.now()).isEqualTo(Instant.parse("2021-06-30T23:59:59.120Z"));
+            assertThat(Instant.now()).isEqualTo(Instant.parse("2021-06-30T23:59:59.130Z"));
+            IntStream.range(0, 100).parallel().forEach(i -> fakeTime.update(FakeTimeUpdate.builder().tick(Duration.ofMillis(10L)).build()));
+            assertThat(Instant.now()).isEqualTo(Instant.parse("2021-06-30T23:59:59.140Z"));
+            fakeTime.update(FakeTimeUpdate.builder().tick(Duration.ofSeconds(1L)).build());
+            assertThat(Instant.now()).isEqualTo(Instant.parse("2021-06-30T23:59:59Z"));
+            assertThat(Instant.now()).isEqualTo(Instant.parse("2021-06-30T23:59:59Z"));
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testListener() {
+        FakeTime fakeTime = FakeTime.install();
+        List<FakeTimeChange> changes = new CopyOnWriteArrayList<>();
+        FakeTimeListener listener = changes::add;
+        Instant instant = OffsetDateTime.of(2023, 10, 29, 0, 59, 59, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.fixAt(instant);
+            fakeTime.addListener(listener);
+            fakeTime.advance(Duration.ofHours(1L));
+            fakeTime.fixAt(instant.minusSeconds(60L));
+            Awaitility.await().atMost(Duration.ofSeconds(5L))
+                    .until(() -> changes.stream().mapToInt(FakeTimeChange::changes).sum() == 2);
+            assertThat(changes.stream().map(FakeTimeChange::jump).reduce(Duration.ZERO, Duration::plus))
+                    .isEqualTo(Duration.ofSeconds(-60L));
+            assertThat(changes.get(changes.size() - 1).current().frozen()).isTrue();
+        } finally {
+            fakeTime.removeListener(listener);
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testPush() {
+        FakeTime fakeTime = FakeTime.install();
+        Instant instant = OffsetDateTime.of(2020, 2, 29, 12, 0, 0, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.fixAt(instant);
+            fakeTime.setTick(Duration.ofMillis(1L));
+            fakeTime.setUniqueifier(FakeTimeUniqueifier.UNIQUE_ATOMIC);
+            assertThat(Instant.now()).isEqualTo(instant);
+            try (var outer = fakeTime.push()) {
+                fakeTime.shift(Duration.ofDays(-1L));
+                try (var inner = fakeTime.push()) {
+                    fakeTime.fixAt(Instant.EPOCH);
+                    assertThat(Instant.now()).isEqualTo(Instant.EPOCH);
+                }
+                assertThat(Instant.now()).isBefore(instant);
+            }
+            assertThat(Instant.now()).isEqualTo(instant.plusMillis(1L));
+            fakeTime.fixAt(instant);
+            fakeTime.advance(Duration.ofSeconds(5L));
+            try (var advanced = fakeTime.push()) {
+                fakeTime.advance(Duration.ofSeconds(5L));
+                assertThat(Instant.now()).isEqualTo(instant.plusSeconds(10L));
+            }
+            assertThat(Instant.now()).isEqualTo(instant.plusSeconds(5L));
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testCoarse() {
+        FakeTime fakeTime = FakeTime.install();
+        try {
+            fakeTime.setCoarse(Duration.ofMillis(1L));
+            Instant before = Instant.now();
+            fakeTime.shift(Duration.ofHours(2L));
+            Instant after = Instant.now();
+            assertThat(Duration.between(before, after)).isBetween(Duration.ofHours(2L).minusSeconds(1L), Duration.ofHours(2L).plusSeconds(1L));
+            Awaitility.await().atMost(Duration.ofSeconds(5L)).until(() -> Instant.now().isAfter(after));
+            IntStream.range(0, 200).forEach(i -> fakeTime.shift(Duration.ofSeconds(i)));
+            assertThat(Thread.getAllStackTraces().keySet()).filteredOn(thread -> thread.getName().equals("faketime-coarse")).hasSize(1);
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testSlewAndMonotonic() throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        try {
+            fakeTime.setMonotonic(true);
+            fakeTime.shift(Duration.ofHours(1L));
+            long before = System.currentTimeMillis();
+            fakeTime.shift(Duration.ZERO);
+            assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(before);
+            fakeTime.setMonotonic(false);
+            assertThat(System.currentTimeMillis()).isLessThan(before);
+            fakeTime.slew(Duration.ofHours(1L), Duration.ofHours(1L));
+            long start = System.currentTimeMillis();
+            Thread.sleep(50L);
+            long elapsed = System.currentTimeMillis() - start;
+            assertThat(elapsed).isGreaterThanOrEqualTo(90L).isLessThan(Duration.ofMinutes(1L).toMillis());
+        } finally {
+            fakeTime.reset();
+        }
+    }
+
+    @Test
+    void testReplay(@TempDir Path directory) throws Exception {
+        FakeTime fakeTime = FakeTime.install();
+        Path recording = directory.resolve("timestamps.bin");
+        Path replay = directory.resolve("replay.bin");
+        Instant instant = OffsetDateTime.of(2019, 2, 22, 1, 0, 34, 0, ZoneOffset.UTC).toInstant();
+        try {
+            fakeTime.startRecording(recording, 1024L * 1024L);
+            for (int i = 0; i < 3; i++) {
+                fakeTime.fixAt(instant.plusSeconds(i));
+                Instant.now();
+            }
+        } finally {
+            fakeTime.stopRecording();
+        }
+        FakeTimeRecording.toReplay(recording, replay);
+        try {
+            fakeTime.replay(replay, true, FakeTimeReplayPolicy.FREEZE);
+            assertThat(Instant.now()).isEqualTo(instant);
+            assertThat(Instant.now()).isEqualTo(instant.plusSeconds(1L));
+            assertThat(System.currentTimeMillis()).isEqualTo(instant.plusSeconds(2L).toEpochMilli());
+            assertThat(Instant.now()).isEqualTo(instant.plusSeconds(2L));
+            fakeTime.replay(replay, true, FakeTimeReplayPolicy.FAIL);
+            for (int i = 0; i < 3; i++) {
+                Instant.now();
+            }
+            assertThatThrownBy(Instant::now).isInstanceOf(IllegalStateException.class);
+            var other = new CompletableFuture<Instant>();
+            Thread thread = new Thread(() -> {
+                Instant.now();
+                Instant.now();
+                Instant.now();
+                other.complete(Instant.now());
+            });
+            thread.start();
+            assertThat(other.get(1L, TimeUnit.MINUTES)).isEqualTo(instant.plusSeconds(2L));
+        } finally {
+            fakeTime.reset();
+        }
+    }
 }